@@ -0,0 +1,113 @@
+package au.com.centrumsystems.hudson.plugin.buildpipeline;
+
+import hudson.model.Cause;
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers which builds started, completed or were deleted lately, so the {@link DownstreamCache} and the
+ * {@link LayoutCache}, which compute outside their lock, can tell whether an entry went stale while it was computed
+ * and must not be stored over the eviction.
+ */
+final class BuildEvents {
+    /**
+     * Maximum number of build ids remembered
+     */
+    private static final int MAX_ENTRIES = Integer.getInteger(BuildEvents.class.getName() + ".maxEntries", 10000);
+
+    /**
+     * Incremented on every build event; guarded by {@link #CHANGED}
+     */
+    private static long generation;
+
+    /**
+     * Newest generation forgotten by {@link #CHANGED}; guarded by {@link #CHANGED}
+     */
+    private static long forgotten;
+
+    /**
+     * Generation of the last event of each build id, oldest first
+     */
+    private static final Map<String, Long> CHANGED = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            if (size() > MAX_ENTRIES) {
+                forgotten = eldest.getValue();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Utility class
+     */
+    private BuildEvents() {
+    }
+
+    /**
+     * @param r a build
+     * @return the externalizable ids of the build and of its upstream builds, whose downstream changes with it
+     */
+    static List<String> affectedBy(Run<?, ?> r) {
+        final List<String> ids = new ArrayList<String>();
+        ids.add(r.getExternalizableId());
+        for (Cause cause : r.getCauses()) {
+            if (cause instanceof Cause.UpstreamCause) {
+                final Cause.UpstreamCause upstream = (Cause.UpstreamCause) cause;
+                ids.add(upstream.getUpstreamProject() + "#" + upstream.getUpstreamBuild());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Record a build event, before the caches evict
+     *
+     * @param r the build which started, completed or was deleted
+     */
+    static void record(Run<?, ?> r) {
+        final List<String> ids = affectedBy(r);
+        synchronized (CHANGED) {
+            generation++;
+            for (String id : ids) {
+                CHANGED.remove(id);
+                CHANGED.put(id, generation);
+            }
+        }
+    }
+
+    /**
+     * @return the current generation, to be taken before computing an entry
+     */
+    static long generation() {
+        synchronized (CHANGED) {
+            return generation;
+        }
+    }
+
+    /**
+     * @param since generation taken before computing an entry
+     * @param ids   externalizable ids of the builds the entry was computed from
+     * @return whether one of them may have changed since
+     */
+    static boolean changedSince(long since, Collection<String> ids) {
+        synchronized (CHANGED) {
+            if (forgotten > since) {
+                return true;
+            }
+            for (String id : ids) {
+                final Long changed = CHANGED.get(id);
+                if (changed != null && changed > since) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
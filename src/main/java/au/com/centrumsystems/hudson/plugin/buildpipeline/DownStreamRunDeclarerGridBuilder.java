@@ -1,40 +1,54 @@
 package au.com.centrumsystems.hudson.plugin.buildpipeline;
 
-import com.google.common.primitives.Ints;
+import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
 import hudson.Extension;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Item;
 import hudson.model.ItemGroup;
 import hudson.model.ParametersDefinitionProperty;
-import hudson.util.AdaptedIterator;
+import hudson.model.Result;
+import hudson.model.View;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.HttpResponses;
 import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
 import jenkins.model.Jenkins;
 import jenkins.util.TimeDuration;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 import org.acegisecurity.AccessDeniedException;
-import org.jgrapht.DirectedGraph;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.interceptor.RequirePOST;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.PrintWriter;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.List;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.logging.Level;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
-import static au.com.centrumsystems.hudson.plugin.buildpipeline.ExecutionBuildGraph.Edge;
 import static au.com.centrumsystems.hudson.plugin.buildpipeline.ExecutionBuildGraph.Position;
-import static au.com.centrumsystems.hudson.plugin.buildpipeline.ExecutionBuildGraph.Vertex;
 
 
 /**
@@ -49,6 +63,23 @@ public class DownStreamRunDeclarerGridBuilder extends ProjectGridBuilder {
      */
     private static final Logger LOGGER = Logger.getLogger(DownStreamRunDeclarerGridBuilder.class.getName());
 
+    /**
+     * How long a single cell update stream is kept open before the client has to reconnect
+     */
+    private static final long CELL_UPDATES_STREAM_MILLIS = 60 * 1000;
+
+    /**
+     * Number of rows laid out ahead of the one being rendered; 0 lays out the rows one by one on the request thread
+     */
+    private static final int PREFETCH_ROWS = Integer.getInteger(DownStreamRunDeclarerGridBuilder.class.getName() + ".prefetchRows",
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Lays out build rows ahead of the rendering, shared by all views
+     */
+    private static final ExecutorService ROW_EXECUTOR = Executors.newFixedThreadPool(Math.max(1, PREFETCH_ROWS),
+            new NamingThreadFactory(new DaemonThreadFactory(), "DownStreamRunDeclarerGridBuilder.rows"));
+
     /**
      * Name of the first job in the grid, relative to the owner view.
      */
@@ -59,6 +90,21 @@ public class DownStreamRunDeclarerGridBuilder extends ProjectGridBuilder {
      */
     private String firstJobLink;
 
+    /**
+     * Cells last pushed to the clients of {@link #doCellUpdates}, shared by all viewers of the owner view
+     */
+    private transient PipelineCellModel cellModel;
+
+    /**
+     * Header row of the pipeline, derived from the displayed pipeline instances
+     */
+    private transient ProjectGridCache projectGridCache;
+
+    /**
+     * Widest build row laid out for the owner view, used as the column count instead of laying out every row first
+     */
+    private transient AtomicInteger maxColumns;
+
     /**
      * @param firstJob Name of the job to lead the piepline.
      */
@@ -82,17 +128,39 @@ public class DownStreamRunDeclarerGridBuilder extends ProjectGridBuilder {
         private final ItemGroup context;
 
         /**
-         * @param context item group pipeline view belongs to, used to compute relative item names
-         * @param start   The first project to lead the pipeline.
+         * Number of pipeline instances displayed
+         */
+        private final int rows;
+
+        /**
+         * Widest row seen by the view
          */
-        private ProjectGridImpl(ItemGroup context, AbstractProject<?, ?> start) {
+        private final AtomicInteger maxColumns;
+
+        /**
+         * @param context    item group pipeline view belongs to, used to compute relative item names
+         * @param start      The first project to lead the pipeline.
+         * @param header     projects laid out like the execution graphs of the displayed builds, empty if none
+         * @param rows       number of pipeline instances displayed
+         * @param maxColumns widest row seen by the view
+         */
+        private ProjectGridImpl(ItemGroup context, AbstractProject<?, ?> start, Map<Position, ProjectForm> header, int rows,
+                                AtomicInteger maxColumns) {
             this.context = context;
             this.start = start;
-            placeProjectInGrid(0, 0, ProjectForm.as(start));
+            this.rows = rows;
+            this.maxColumns = maxColumns;
+            if (header.isEmpty()) {
+                placeProjectInGrid(0, 0, ProjectForm.as(start));
+            } else {
+                for (Map.Entry<Position, ProjectForm> entry : header.entrySet()) {
+                    set(entry.getKey().x, entry.getKey().y, entry.getValue());
+                }
+            }
         }
 
         /**
-         * Function called recursively to place a project form in a grid
+         * Function called recursively to place a project form in a grid, used until the pipeline has run
          *
          * @param startingRow    project will be placed in the starting row and 1st child as well. Each subsequent
          *                       child will be placed in a row below the previous.
@@ -115,7 +183,8 @@ public class DownStreamRunDeclarerGridBuilder extends ProjectGridBuilder {
         }
 
         /**
-         * Factory for {@link Iterator}.
+         * Factory for {@link Iterator}. Rows are laid out ahead on {@link #ROW_EXECUTOR} and handed out in order,
+         * so the view can render the first rows while the next ones are still being computed.
          */
         private final Iterable<BuildGrid> builds = new Iterable<BuildGrid>() {
             @Override
@@ -124,13 +193,7 @@ public class DownStreamRunDeclarerGridBuilder extends ProjectGridBuilder {
                     return Collections.<BuildGrid>emptyList().iterator();
                 }
 
-                final Iterator<? extends AbstractBuild<?, ?>> base = start.getBuilds().iterator();
-                return new AdaptedIterator<AbstractBuild<?, ?>, BuildGrid>(base) {
-                    @Override
-                    protected BuildGrid adapt(AbstractBuild<?, ?> item) {
-                        return new BuildGridImpl(context, item);
-                    }
-                };
+                return new BuildGridIterator(context, start.getBuilds().limit(rows).iterator(), maxColumns);
             }
         };
 
@@ -140,21 +203,173 @@ public class DownStreamRunDeclarerGridBuilder extends ProjectGridBuilder {
         }
 
         /**
+         * Doesn't lay out the build grids: the header is the union of the displayed layouts, and the widest row
+         * seen so far by this view covers the rest.
+         *
          * @return the maximum number of columns: project grid and build grids
          */
         @Override
         public int getColumns() {
-            final List<Integer> li = new ArrayList<Integer>();
-            li.add(super.getColumns());
-            for (BuildGrid bg : builds) {
-                li.add(bg.getColumns());
+            return Math.max(super.getColumns(), maxColumns.get());
+        }
+    }
+
+    /**
+     * Lays out the next {@link #PREFETCH_ROWS} rows in the background, as the requesting user, while the current
+     * one is rendered, and returns them in order. A failure laying out a row is thrown by {@link #next()}.
+     *
+     * @param <T> laid out row
+     */
+    private abstract static class PrefetchingIterator<T> implements Iterator<T> {
+        /**
+         * root builds still to be submitted
+         */
+        private final Iterator<? extends AbstractBuild<?, ?>> base;
+
+        /**
+         * rows submitted but not returned yet, in order
+         */
+        private final LinkedList<Future<T>> pending = new LinkedList<Future<T>>();
+
+        /**
+         * @param base root builds of the displayed rows
+         */
+        protected PrefetchingIterator(Iterator<? extends AbstractBuild<?, ?>> base) {
+            this.base = base;
+        }
+
+        /**
+         * @param build root build of the row
+         * @return the laid out row
+         */
+        protected abstract T layout(AbstractBuild<?, ?> build);
+
+        /**
+         * Called once every row has been handed out
+         */
+        protected void done() {
+        }
+
+        /**
+         * Submit rows until {@link #PREFETCH_ROWS} are pending
+         */
+        private void fill() {
+            while (pending.size() < PREFETCH_ROWS && base.hasNext()) {
+                final AbstractBuild<?, ?> build = base.next();
+                final Authentication auth = Jenkins.getAuthentication();
+                pending.add(ROW_EXECUTOR.submit(new Callable<T>() {
+                    @Override
+                    public T call() {
+                        final SecurityContext old = ACL.impersonate(auth);
+                        try {
+                            return layout(build);
+                        } finally {
+                            SecurityContextHolder.setContext(old);
+                        }
+                    }
+                }));
             }
-            return Ints.max(Ints.toArray(li));
+        }
+
+        /**
+         * Stop laying out the rows nobody will ask for. Rows already being laid out finish without interruption, their
+         * layout still serves the next viewer.
+         */
+        void cancel() {
+            for (Future<T> row : pending) {
+                row.cancel(false);
+            }
+            pending.clear();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !pending.isEmpty() || base.hasNext();
+        }
+
+        @Override
+        public T next() {
+            final T next;
+            if (PREFETCH_ROWS <= 0) {
+                next = layout(base.next());
+            } else {
+                fill();
+                if (pending.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                final Future<T> row = pending.removeFirst();
+                fill();
+                try {
+                    next = row.get();
+                } catch (ExecutionException e) {
+                    cancel();
+                    throw Throwables.propagate(e.getCause());
+                } catch (InterruptedException e) {
+                    cancel();
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while laying out the pipeline rows", e);
+                }
+            }
+            if (!hasNext()) {
+                done();
+            }
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Prefetched {@link BuildGrid}s of a view. The widest row of a complete pass becomes the column count of the
+     * view, so it shrinks again once wide pipeline instances are no longer displayed.
+     */
+    private static final class BuildGridIterator extends PrefetchingIterator<BuildGrid> {
+        /**
+         * item group pipeline view belongs to
+         */
+        private final ItemGroup context;
+
+        /**
+         * widest row seen by the view, updated as rows are laid out
+         */
+        private final AtomicInteger maxColumns;
+
+        /**
+         * widest row of this pass
+         */
+        private final AtomicInteger passColumns = new AtomicInteger();
+
+        /**
+         * @param context    item group pipeline view belongs to
+         * @param base       root builds of the displayed rows
+         * @param maxColumns widest row seen by the view
+         */
+        private BuildGridIterator(ItemGroup context, Iterator<? extends AbstractBuild<?, ?>> base, AtomicInteger maxColumns) {
+            super(base);
+            this.context = context;
+            this.maxColumns = maxColumns;
+        }
+
+        @Override
+        protected BuildGrid layout(AbstractBuild<?, ?> build) {
+            final BuildGrid grid = new BuildGridImpl(context, build);
+            widen(maxColumns, grid.getColumns());
+            widen(passColumns, grid.getColumns());
+            return grid;
+        }
+
+        @Override
+        protected void done() {
+            maxColumns.set(passColumns.get());
         }
     }
 
     /**
-     * {@link BuildGrid} implementation that lays things out via its upstream/downstream relationship.
+     * {@link BuildGrid} implementation that lays things out via its upstream/downstream relationship, as cached by
+     * {@link LayoutCache}, showing only the builds the current user may read.
      */
     private static final class BuildGridImpl extends DefaultBuildGridImpl {
         /**
@@ -162,25 +377,17 @@ public class DownStreamRunDeclarerGridBuilder extends ProjectGridBuilder {
          * @param start     The first build to lead the pipeline instance.
          */
         private BuildGridImpl(final ItemGroup itemGroup, AbstractBuild<?, ?> start) {
-            try {
-                final ExecutionBuildGraph bg = new ExecutionBuildGraph(new Vertex<AbstractBuild<?, ?>>(start, 0));
-                final DirectedGraph<Vertex<AbstractBuild<?, ?>>, Edge> graph = bg.getGraph();
-                final Map<Vertex<AbstractBuild<?, ?>>, Position> graphLayout = bg.getGraphLayout();
-                for (Map.Entry<Vertex<AbstractBuild<?, ?>>, Position> entry : graphLayout.entrySet()) {
-                    final Position p = entry.getValue();
-                    final Vertex<AbstractBuild<?, ?>> vertex = entry.getKey();
-                    final AbstractBuild<?, ?> build = vertex.getBuild();
-                    final BuildForm bf = new BuildForm(itemGroup, new PipelineBuild(build));
-                    set(p.x, p.y, bf);
-                    if (graph.outDegreeOf(vertex) > 0) {
-                        //for showing "next" image means has dependent BuildForms.
-                        bf.getDependencies().add(bf);
-                    }
+            for (LayoutCache.Cell cell : LayoutCache.get(start).getCells(new ReadableProjects())) {
+                final AbstractBuild<?, ?> build = cell.getBuild();
+                if (build == null) {
+                    continue;
+                }
+                final BuildForm bf = new BuildForm(itemGroup, new PipelineBuild(build));
+                set(cell.getRow(), cell.getColumn(), bf);
+                if (!cell.getDownstream().isEmpty()) {
+                    //for showing "next" image means has dependent BuildForms.
+                    bf.getDependencies().add(bf);
                 }
-            } catch (ExecutionException e) {
-                LOGGER.log(Level.SEVERE, "ExecutionException", e);
-            } catch (InterruptedException e) {
-                LOGGER.log(Level.SEVERE, "InterrupedException", e);
             }
         }
     }
@@ -260,7 +467,322 @@ public class DownStreamRunDeclarerGridBuilder extends ProjectGridBuilder {
                 this.firstJobLink = "";
             }
         }
-        return new ProjectGridImpl(owner.getOwnerItemGroup(), getFirstJob(owner));
+        PipelineWarmUp.get().viewed(owner);
+        final AbstractProject<?, ?> start = getFirstJob(owner);
+        final int rows = getDisplayedRows(owner);
+        final Map<Position, ProjectForm> header = getProjectGridCache().get(start, rows, new ReadableProjects());
+        return new ProjectGridImpl(owner.getOwnerItemGroup(), start, header, rows, getMaxColumns());
+    }
+
+    /**
+     * Server-Sent Events stream of the cells which changed since the client's last event id (the
+     * {@code Last-Event-ID} header, or the {@code since} parameter). Cells are only recomputed once per build
+     * event for all viewers of the view, and only the changed ones the viewer may read are sent.
+     *
+     * @param req   request
+     * @param owner View that this builder is operating under.
+     * @return the event stream
+     */
+    public HttpResponse doCellUpdates(StaplerRequest req, @AncestorInPath final BuildPipelineView owner) {
+        owner.checkPermission(View.READ);
+        return new HttpResponse() {
+            @Override
+            public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node) throws IOException, ServletException {
+                streamCellUpdates(req, rsp, owner);
+            }
+        };
+    }
+
+    /**
+     * @param req   request
+     * @param rsp   response
+     * @param owner View that this builder is operating under.
+     * @throws IOException
+     */
+    private void streamCellUpdates(StaplerRequest req, StaplerResponse rsp, BuildPipelineView owner) throws IOException {
+        rsp.setContentType("text/event-stream;charset=UTF-8");
+        rsp.setHeader("Cache-Control", "no-cache");
+        final PrintWriter writer = rsp.getWriter();
+        final PipelineCellModel model = getCellModel();
+        final AbstractProject<?, ?> start = getFirstJobAsSystem(owner);
+        final int rows = getDisplayedRows(owner);
+        final ReadableProjects readable = new ReadableProjects();
+        String lastEventId = req.getHeader("Last-Event-ID");
+        if (lastEventId == null) {
+            lastEventId = req.getParameter("since");
+        }
+        final long deadline = System.currentTimeMillis() + CELL_UPDATES_STREAM_MILLIS;
+        try {
+            while (true) {
+                final long generation = PipelineBuildListener.getGeneration();
+                model.refresh(start, rows, generation);
+                lastEventId = model.writeSince(writer, lastEventId, readable);
+                writer.flush();
+                final long remaining = deadline - System.currentTimeMillis();
+                if (writer.checkError() || remaining <= 0) {
+                    return;
+                }
+                PipelineBuildListener.awaitChange(generation, Math.min(remaining, PipelineCellModel.RUNNING_REFRESH_MILLIS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Newline-delimited JSON stream of the displayed pipeline instances, one row per line, each flushed as soon as
+     * it is laid out, so {@code progressive.jelly} can draw the first rows while the next ones are being computed.
+     *
+     * @param owner View that this builder is operating under.
+     * @return the row stream
+     */
+    public HttpResponse doRows(@AncestorInPath final BuildPipelineView owner) {
+        owner.checkPermission(View.READ);
+        final AbstractProject<?, ?> start = getFirstJob(owner);
+        final int rows = getDisplayedRows(owner);
+        return new HttpResponse() {
+            @Override
+            public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node) throws IOException, ServletException {
+                rsp.setContentType("application/x-ndjson;charset=UTF-8");
+                rsp.setHeader("Cache-Control", "no-cache");
+                final PrintWriter writer = rsp.getWriter();
+                if (start == null) {
+                    return;
+                }
+                final Iterator<? extends AbstractBuild<?, ?>> roots = start.getBuilds().limit(rows).iterator();
+                final PrefetchingIterator<JSONObject> it = new PrefetchingIterator<JSONObject>(roots) {
+                    @Override
+                    protected JSONObject layout(AbstractBuild<?, ?> build) {
+                        return toJSON(build);
+                    }
+                };
+                while (it.hasNext()) {
+                    writer.print(it.next().toString());
+                    writer.print('\n');
+                    writer.flush();
+                    if (writer.checkError()) {
+                        it.cancel();
+                        return;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * @param root root build of a pipeline instance
+     * @return its builds laid out in the grid, as seen by the current user
+     */
+    private static JSONObject toJSON(AbstractBuild<?, ?> root) {
+        final LayoutCache.Layout layout = LayoutCache.get(root);
+        final JSONArray cells = new JSONArray();
+        int rows = 0;
+        for (LayoutCache.Cell c : layout.getCells(new ReadableProjects())) {
+            final AbstractBuild<?, ?> build = c.getBuild();
+            if (build == null) {
+                continue;
+            }
+            final Result result = build.getResult();
+            final JSONObject cell = new JSONObject();
+            cell.put("row", c.getRow());
+            cell.put("column", c.getColumn());
+            cell.put("name", build.getFullDisplayName());
+            cell.put("url", build.getUrl());
+            cell.put("status", build.isBuilding() || result == null ? "BUILDING" : result.toString());
+            cells.add(cell);
+            rows = Math.max(rows, c.getRow() + 1);
+        }
+        final JSONObject row = new JSONObject();
+        row.put("root", root.getExternalizableId());
+        row.put("rows", rows);
+        row.put("columns", layout.getColumns());
+        row.put("cells", cells);
+        return row;
+    }
+
+    /**
+     * Success rate, mean/p95 duration and mean queue time of each stage (project position) of the pipeline, over
+     * its recent builds.
+     *
+     * @param owner View that this builder is operating under.
+     * @return one entry per stage with its row, column and project
+     */
+    public JSONArray getStageStatistics(BuildPipelineView owner) {
+        final JSONArray result = new JSONArray();
+        final AbstractProject<?, ?> start = getFirstJob(owner);
+        final StageStatistics statistics = StageStatistics.get();
+        final Map<Position, String> placements = getProjectGridCache().getPlacements(start, getDisplayedRows(owner),
+                new ReadableProjects());
+        for (Map.Entry<Position, String> entry : placements.entrySet()) {
+            final Position p = entry.getKey();
+            final JSONObject stage = statistics.toJSON(StageStatistics.key(start.getFullName(), p.x, p.y,
+                    entry.getValue()));
+            stage.put("row", p.x);
+            stage.put("column", p.y);
+            stage.put("project", entry.getValue());
+            result.add(stage);
+        }
+        return result;
+    }
+
+    /**
+     * @return {@link #getStageStatistics(BuildPipelineView)} of the view the current request goes through, for Jelly
+     */
+    public JSONArray getStageStatistics() {
+        final BuildPipelineView owner = Stapler.getCurrentRequest().findAncestorObject(BuildPipelineView.class);
+        return owner == null ? new JSONArray() : getStageStatistics(owner);
+    }
+
+    /**
+     * {@link #getStageStatistics(BuildPipelineView)} as JSON, for dashboards.
+     *
+     * @param owner View that this builder is operating under.
+     * @return the statistics
+     */
+    public HttpResponse doStageStatistics(@AncestorInPath BuildPipelineView owner) {
+        owner.checkPermission(View.READ);
+        return HttpResponses.plainText(getStageStatistics(owner).toString());
+    }
+
+    /**
+     * SVG picture of one pipeline instance, showing the builds the current user may read. Browsers may reuse the
+     * picture of a completed pipeline instance for an hour and revalidate it with its ETag, that of a running one
+     * for a few seconds; shared caches may not keep it.
+     *
+     * @param build number of the build of the first job leading the pipeline instance
+     * @param owner View that this builder is operating under.
+     * @return the picture
+     */
+    public HttpResponse doSvg(@QueryParameter final int build, @AncestorInPath BuildPipelineView owner) {
+        owner.checkPermission(View.READ);
+        final AbstractProject<?, ?> start = getFirstJob(owner);
+        final AbstractBuild<?, ?> root = start == null ? null : start.getBuildByNumber(build);
+        if (root == null) {
+            return HttpResponses.error(StaplerResponse.SC_NOT_FOUND, "No such build: " + getFirstJob() + " #" + build);
+        }
+        final PipelineSvgRenderer.Picture picture = PipelineSvgRenderer.render(root);
+        return new HttpResponse() {
+            @Override
+            public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node) throws IOException, ServletException {
+                rsp.setHeader("ETag", picture.getETag());
+                final long maxAge = picture.isComplete() ? PipelineSvgRenderer.COMPLETE_MAX_AGE_SECONDS
+                        : PipelineSvgRenderer.RUNNING_MAX_AGE_SECONDS;
+                rsp.setHeader("Cache-Control", "private, max-age=" + maxAge + ", must-revalidate");
+                if (picture.getETag().equals(req.getHeader("If-None-Match"))) {
+                    rsp.setStatus(StaplerResponse.SC_NOT_MODIFIED);
+                    return;
+                }
+                rsp.setContentType("image/svg+xml;charset=UTF-8");
+                rsp.getWriter().write(picture.getSvg());
+            }
+        };
+    }
+
+    /**
+     * Precompute the header and the layouts of the displayed rows of the owner view, without any request waiting
+     * for it. Only fills the caches shared by all viewers, which are filtered for each request, and the column count.
+     *
+     * @param owner    View that this builder is operating under.
+     * @param afterRow called after each row, to throttle the work
+     */
+    void warmUp(BuildPipelineView owner, Runnable afterRow) {
+        final AbstractProject<?, ?> start = getFirstJob(owner);
+        if (start == null) {
+            return;
+        }
+        final int rows = getDisplayedRows(owner);
+        getProjectGridCache().get(start, rows, Predicates.<String>alwaysFalse());
+        final Iterator<? extends AbstractBuild<?, ?>> it = start.getBuilds().limit(rows).iterator();
+        while (it.hasNext() && !Thread.currentThread().isInterrupted()) {
+            widen(getMaxColumns(), LayoutCache.get(it.next()).getColumns());
+            afterRow.run();
+        }
+    }
+
+    /**
+     * The head of the pipeline as seen by SYSTEM, for the caches shared by all the viewers of the owner view.
+     *
+     * @param owner View that this builder is operating under.
+     * @return possibly null
+     */
+    AbstractProject<?, ?> getFirstJobAsSystem(BuildPipelineView owner) {
+        final SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+        try {
+            return getFirstJob(owner);
+        } finally {
+            SecurityContextHolder.setContext(old);
+        }
+    }
+
+    /**
+     * @return the per-view cell model, created on first use
+     */
+    private PipelineCellModel getCellModel() {
+        synchronized (this) {
+            if (cellModel == null) {
+                cellModel = new PipelineCellModel();
+            }
+            return cellModel;
+        }
+    }
+
+    /**
+     * @return the per-view header cache, created on first use
+     */
+    private ProjectGridCache getProjectGridCache() {
+        synchronized (this) {
+            if (projectGridCache == null) {
+                projectGridCache = new ProjectGridCache();
+            }
+            return projectGridCache;
+        }
+    }
+
+    /**
+     * @param maxColumns widest row seen by a view
+     * @param columns    width of a row just laid out
+     */
+    private static void widen(AtomicInteger maxColumns, int columns) {
+        int seen = maxColumns.get();
+        while (columns > seen && !maxColumns.compareAndSet(seen, columns)) {
+            seen = maxColumns.get();
+        }
+    }
+
+    /**
+     * @return the widest build row laid out for the owner view, created on first use
+     */
+    private AtomicInteger getMaxColumns() {
+        synchronized (this) {
+            if (maxColumns == null) {
+                maxColumns = new AtomicInteger();
+            }
+            return maxColumns;
+        }
+    }
+
+    /**
+     * @param owner View that this builder is operating under.
+     * @return number of pipeline instances displayed by the view
+     */
+    static int getDisplayedRows(BuildPipelineView owner) {
+        return (int) parseLong(owner.getNoOfDisplayedBuilds(), 1);
+    }
+
+    /**
+     * @param value        text to parse, possibly null
+     * @param defaultValue returned when the text is not a number
+     * @return the parsed value
+     */
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
     @Override
@@ -300,5 +822,15 @@ public class DownStreamRunDeclarerGridBuilder extends ProjectGridBuilder {
             }
             return options;
         }
+
+        /**
+         * Layout counters (graphviz forks, temporary files, startup warm-up progress) in JSON.
+         *
+         * @return the counters
+         */
+        public HttpResponse doLayoutMetrics() {
+            Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+            return HttpResponses.plainText(LayoutMetrics.toJSON().toString());
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,251 @@
+package au.com.centrumsystems.hudson.plugin.buildpipeline;
+
+import com.cloudbees.plugins.flow.FlowDownStreamRunDeclarer;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.security.ACL;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.jenkinsci.plugins.buildgraphview.DownStreamRunDeclarer;
+import org.jenkinsci.plugins.buildgraphview.UpstreamCauseDonwStreamRunDeclarer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide cache of the downstream builds of a build (build id to downstream build ids), shared by every
+ * {@link ExecutionBuildGraph} so pipelines converging on the same downstream builds don't re-ask the
+ * {@link DownStreamRunDeclarer}s. Entries of completed builds are kept until evicted by size, entries of running
+ * builds only for a short while.
+ * <p>
+ * Entries are shared by all users, so the declarers are asked as SYSTEM; the builds handed out are filtered for the
+ * current user when resolved.
+ */
+final class DownstreamCache {
+    /**
+     * A Logger object is used to log messages
+     */
+    private static final Logger LOGGER = Logger.getLogger(DownstreamCache.class.getName());
+
+    /**
+     * Maximum number of builds cached
+     */
+    private static final int MAX_ENTRIES = Integer.getInteger(DownstreamCache.class.getName() + ".maxEntries", 10000);
+
+    /**
+     * How long the downstream of a running build is trusted
+     */
+    private static final long RUNNING_TTL_MILLIS = 10 * 1000;
+
+    /**
+     * Cached entries by build id, least recently used first
+     */
+    private static final Map<String, Downstream> CACHE = new LinkedHashMap<String, Downstream>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Downstream> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Utility class
+     */
+    private DownstreamCache() {
+    }
+
+    /**
+     * @param build a build
+     * @return its downstream builds, from the cache when possible
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    static Downstream get(AbstractBuild<?, ?> build) throws ExecutionException, InterruptedException {
+        final String id = build.getExternalizableId();
+        final long now = System.currentTimeMillis();
+        synchronized (CACHE) {
+            final Downstream cached = CACHE.get(id);
+            if (cached != null && cached.expiresAt > now) {
+                return cached;
+            }
+        }
+        final long generation = BuildEvents.generation();
+        final Downstream computed = compute(build, now);
+        final List<String> ids = computed.getIds();
+        ids.add(id);
+        if (!BuildEvents.changedSince(generation, ids)) {
+            // otherwise a build event evicted the entry while it was computed: let the next caller compute it again
+            synchronized (CACHE) {
+                CACHE.put(id, computed);
+            }
+        }
+        return computed;
+    }
+
+    /**
+     * Forget the downstream of a build
+     *
+     * @param id externalizable id of the build
+     */
+    static void evict(String id) {
+        synchronized (CACHE) {
+            CACHE.remove(id);
+        }
+    }
+
+    /**
+     * A build started, completed or was deleted: forget it, and forget its upstream builds since they have a new
+     * downstream build.
+     *
+     * @param r the build
+     */
+    static void onChanged(Run<?, ?> r) {
+        for (String id : BuildEvents.affectedBy(r)) {
+            evict(id);
+        }
+    }
+
+    /**
+     * Ask the declarers for the downstream builds, as SYSTEM: some of them only return the builds the current user
+     * may read.
+     *
+     * @param build a build
+     * @param now   current time
+     * @return the downstream builds
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    private static Downstream compute(AbstractBuild<?, ?> build, long now) throws ExecutionException, InterruptedException {
+        List<String> subProjects = null;
+        List<String> flow = null;
+        List<String> upstreamCause = null;
+        final boolean building = build.isBuilding();
+        final SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+        try {
+            for (DownStreamRunDeclarer declarer : DownStreamRunDeclarer.all()) {
+                if (subProjects == null && declarer instanceof SubProjectsDownStreamRunDeclarer) {
+                    subProjects = ids(declarer.getDownStream(build));
+                } else if (flow == null && declarer instanceof FlowDownStreamRunDeclarer) {
+                    flow = ids(declarer.getDownStream(build));
+                } else if (upstreamCause == null && declarer instanceof UpstreamCauseDonwStreamRunDeclarer) {
+                    upstreamCause = ids(declarer.getDownStream(build));
+                }
+            }
+        } finally {
+            SecurityContextHolder.setContext(old);
+        }
+        LOGGER.fine(String.format("Cached downstream of %s", build.toString()));
+        final long expiresAt = building ? now + RUNNING_TTL_MILLIS : Long.MAX_VALUE;
+        return new Downstream(orEmpty(subProjects), orEmpty(flow), orEmpty(upstreamCause), expiresAt);
+    }
+
+    /**
+     * @param ids build ids, possibly null
+     * @return the ids, or an empty list
+     */
+    private static List<String> orEmpty(List<String> ids) {
+        return ids == null ? Collections.<String>emptyList() : ids;
+    }
+
+    /**
+     * @param runs builds, possibly containing nulls
+     * @return ids of the builds
+     */
+    private static List<String> ids(List<Run> runs) {
+        final List<String> ids = new ArrayList<String>(runs.size());
+        for (Run r : runs) {
+            if (r != null) {
+                ids.add(r.getExternalizableId());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @param ids build ids
+     * @return the builds still existing that the current user may read
+     */
+    private static List<Run> resolve(List<String> ids) {
+        final List<Run> runs = new ArrayList<Run>(ids.size());
+        for (String id : ids) {
+            final Run<?, ?> r = Run.fromExternalizableId(id);
+            if (r instanceof AbstractBuild) {
+                runs.add(r);
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Downstream build ids of a build, by declarer
+     */
+    static final class Downstream {
+        /**
+         * builds found by {@link SubProjectsDownStreamRunDeclarer}
+         */
+        private final List<String> subProjects;
+
+        /**
+         * builds found by {@link FlowDownStreamRunDeclarer}
+         */
+        private final List<String> flow;
+
+        /**
+         * builds found by {@link UpstreamCauseDonwStreamRunDeclarer}
+         */
+        private final List<String> upstreamCause;
+
+        /**
+         * when the entry stops being trusted
+         */
+        private final long expiresAt;
+
+        /**
+         * @param subProjects   builds found by {@link SubProjectsDownStreamRunDeclarer}
+         * @param flow          builds found by {@link FlowDownStreamRunDeclarer}
+         * @param upstreamCause builds found by {@link UpstreamCauseDonwStreamRunDeclarer}
+         * @param expiresAt     when the entry stops being trusted
+         */
+        private Downstream(List<String> subProjects, List<String> flow, List<String> upstreamCause, long expiresAt) {
+            this.subProjects = subProjects;
+            this.flow = flow;
+            this.upstreamCause = upstreamCause;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return ids of all the downstream builds, readable by the current user or not
+         */
+        List<String> getIds() {
+            final List<String> ids = new ArrayList<String>(subProjects);
+            ids.addAll(flow);
+            ids.addAll(upstreamCause);
+            return ids;
+        }
+
+        /**
+         * @return builds triggered as parameterized-trigger sub projects
+         */
+        List<Run> getSubProjects() {
+            return resolve(subProjects);
+        }
+
+        /**
+         * @return builds triggered by the build flow
+         */
+        List<Run> getFlow() {
+            return resolve(flow);
+        }
+
+        /**
+         * @return builds caused by the build
+         */
+        List<Run> getUpstreamCause() {
+            return resolve(upstreamCause);
+        }
+    }
+}
@@ -1,14 +1,11 @@
 package au.com.centrumsystems.hudson.plugin.buildpipeline;
 
-import com.cloudbees.plugins.flow.FlowDownStreamRunDeclarer;
 import hudson.Functions;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.Run;
 import hudson.util.LogTaskListener;
 import jenkins.model.Jenkins;
-import org.jenkinsci.plugins.buildgraphview.DownStreamRunDeclarer;
-import org.jenkinsci.plugins.buildgraphview.UpstreamCauseDonwStreamRunDeclarer;
 import org.jgrapht.DirectedGraph;
 import org.jgrapht.ext.DOTExporter;
 import org.jgrapht.graph.SimpleDirectedGraph;
@@ -60,6 +57,11 @@ public class ExecutionBuildGraph {
      */
     private Vertex<AbstractBuild<?, ?>> start;
 
+    /**
+     * whether graphviz could not place every build, in which case the layout falls back to the discovery order
+     */
+    private boolean layoutFailed;
+
     /**
      * @param vertex a start project build for calculating build graph)
      */
@@ -69,7 +71,8 @@ public class ExecutionBuildGraph {
     }
 
     /**
-     * Calculate the build graph of the start project build via traversing all of instances of DownStreamRunDeclarer
+     * Calculate the build graph of the start project build via traversing all of instances of DownStreamRunDeclarer,
+     * through the {@link DownstreamCache} shared by all views
      *
      * @return the whole graph of the start project build with transform information for showing on the build-pipeline
      * @throws ExecutionException
@@ -91,6 +94,13 @@ public class ExecutionBuildGraph {
         return this.graphLayout;
     }
 
+    /**
+     * @return whether graphviz failed or was interrupted, so the layout must not be trusted for long
+     */
+    public boolean isLayoutFailed() {
+        return this.layoutFailed;
+    }
+
     /**
      * Layout for build execution graph
      */
@@ -152,20 +162,39 @@ public class ExecutionBuildGraph {
         for (Vertex<AbstractBuild<?, ?>> vertex : graph.vertexSet()) {
             vertexMap.put(vertex.build.toString(), vertex);
         }
+        final String dotFilePath = exportDOT(graph);
+        if (dotFilePath == null) {
+            layoutFailed = true;
+            return;
+        }
         File tmpGraphVizPlainTextFile = null;
         try {
-            tmpGraphVizPlainTextFile = new File(graphvizLayoutPlain(exportDOT(graph)));
+            final String plainFilePath = graphvizLayoutPlain(dotFilePath);
+            if (plainFilePath == null) {
+                layoutFailed = true;
+                return;
+            }
+            tmpGraphVizPlainTextFile = new File(plainFilePath);
+            int placed = 0;
             for (String line : Unix4j.cat(tmpGraphVizPlainTextFile).grep("node").toStringList()) {
                 final Pattern p = Pattern.compile("node \"(.+)\" ([-+]?[0-9]*\\.?[0-9]+) ([-+]?[0-9]*\\.?[0-9]+)");
                 final Matcher m = p.matcher(line);
                 if (m.find()) {
                     final Vertex<AbstractBuild<?, ?>> vertex = vertexMap.get(m.group(1));
-                    vertex.setX(Double.parseDouble(m.group(2)));
+                    if (vertex != null) {
+                        vertex.setX(Double.parseDouble(m.group(2)));
+                        placed++;
+                    }
                     //vertex.setY(Double.parseDouble(m.group(3)));
                 }
             }
+            if (placed < vertexMap.size()) {
+                LOGGER.warning(String.format("graphviz placed %d of %d builds", placed, vertexMap.size()));
+                layoutFailed = true;
+            }
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "IOException ", e);
+            layoutFailed = true;
         } finally {
             if (tmpGraphVizPlainTextFile != null) {
                 try {
@@ -181,7 +210,7 @@ public class ExecutionBuildGraph {
      * make use of graphviz to layout and generate plain-text output
      *
      * @param dotFilePath the Dot file path
-     * @return the absolute path of plain-text of layout by graphviz
+     * @return the absolute path of plain-text of layout by graphviz, null if graphviz failed or was interrupted
      * @throws IOException
      */
     private String graphvizLayoutPlain(String dotFilePath) throws IOException {
@@ -191,19 +220,32 @@ public class ExecutionBuildGraph {
         File graphvizPlainTextFile = null;
         OutputStream output = null;
         InputStream input = null;
+        String result = null;
         try {
             dotFile = new File(dotFilePath);
             graphvizPlainTextFile = File.createTempFile("tmp_plain", ".txt");
+            LayoutMetrics.tempFileCreated();
             output = new FileOutputStream(graphvizPlainTextFile);
             input = new FileInputStream(dotFile);
-            if (jenkins != null) {
-                final Launcher launcher = jenkins.createLauncher(new LogTaskListener(LOGGER, Level.CONFIG));
-                launcher.launch()
-                        .cmds(dotCommand, "-Tplain", "-Gcharset=UTF-8", "-q1")
-                        .stdin(input)
-                        .stdout(output)
-                        .start().join();
+            if (jenkins == null) {
+                return result;
+            }
+            final Launcher launcher = jenkins.createLauncher(new LogTaskListener(LOGGER, Level.CONFIG));
+            LayoutMetrics.forked();
+            final int exitCode = launcher.launch()
+                    .cmds(dotCommand, "-Tplain", "-Gcharset=UTF-8", "-q1")
+                    .stdin(input)
+                    .stdout(output)
+                    .start().join();
+            if (exitCode != 0) {
+                LOGGER.warning(String.format("%s exited with code %d", dotCommand, exitCode));
+                return result;
             }
+            result = graphvizPlainTextFile.getAbsolutePath();
+        } catch (InterruptedException e) {
+            // let the caller see the interrupt, and the unfinished layout as a failure
+            Thread.currentThread().interrupt();
+            LOGGER.log(Level.FINE, "Interrupted while waiting for graphviz", e);
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Exception: ", e);
         } finally {
@@ -228,26 +270,34 @@ public class ExecutionBuildGraph {
                     e.printStackTrace();
                 }
             }
+            if (result == null && graphvizPlainTextFile != null) {
+                graphvizPlainTextFile.delete();
+            }
         }
-        return graphvizPlainTextFile.getAbsolutePath();
+        return result;
     }
 
     /**
      * export build execution graph into dot file
      *
      * @param graph build execution graph
-     * @return the absolute path of dot file exported
+     * @return the absolute path of dot file exported, null if it could not be written
      */
     private String exportDOT(DirectedGraph<Vertex<AbstractBuild<?, ?>>, Edge> graph) {
         Writer writer = null;
         File dotFile = null;
         try {
             dotFile = File.createTempFile("tmp", ".dot");
+            LayoutMetrics.tempFileCreated();
             writer = new OutputStreamWriter(new FileOutputStream(dotFile), "UTF-8");
             final DOTExporter exporter = new DOTExporter(new StringNameProvider(), null, null);
             exporter.export(writer, graph);
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "IOException", e);
+            if (dotFile != null) {
+                dotFile.delete();
+            }
+            return null;
         } finally {
             try {
                 if (writer != null) {
@@ -273,37 +323,18 @@ public class ExecutionBuildGraph {
      * @throws InterruptedException
      */
     private void computeGraphFrom(Vertex<AbstractBuild<?, ?>> currentVertex) throws ExecutionException, InterruptedException {
-        for (DownStreamRunDeclarer declarer : DownStreamRunDeclarer.all()) {
-            if (declarer instanceof SubProjectsDownStreamRunDeclarer) {
-                final List<Run> runs = declarer.getDownStream(currentVertex.getBuild());
-                goThroughBuilds(runs);
-                break;
-            }
-        }
-
-        for (DownStreamRunDeclarer declarer : DownStreamRunDeclarer.all()) {
-            if (declarer instanceof FlowDownStreamRunDeclarer) {
-                final List<Run> runs = declarer.getDownStream((Run) currentVertex.getBuild());
-                for (Run r : runs) {
-                    if (r != null) {
-                        final AbstractBuild<?, ?> next = (AbstractBuild<?, ?>) r;
-                        final Vertex<AbstractBuild<?, ?>> newVertex = new Vertex<AbstractBuild<?, ?>>(next, 0);
-                        graph.addVertex(newVertex); // ignore if already added
-                        graph.addEdge(currentVertex, newVertex, new Edge(currentVertex, newVertex));
-                        computeGraphFrom(newVertex);
-                    }
-                }
-                break;
-            }
+        final DownstreamCache.Downstream downstream = DownstreamCache.get(currentVertex.getBuild());
+        goThroughBuilds(downstream.getSubProjects());
+
+        for (Run r : downstream.getFlow()) {
+            final AbstractBuild<?, ?> next = (AbstractBuild<?, ?>) r;
+            final Vertex<AbstractBuild<?, ?>> newVertex = new Vertex<AbstractBuild<?, ?>>(next, 0);
+            graph.addVertex(newVertex); // ignore if already added
+            graph.addEdge(currentVertex, newVertex, new Edge(currentVertex, newVertex));
+            computeGraphFrom(newVertex);
         }
 
-        for (DownStreamRunDeclarer declarer : DownStreamRunDeclarer.all()) {
-            if (declarer instanceof UpstreamCauseDonwStreamRunDeclarer) {
-                final List<Run> runs = declarer.getDownStream(currentVertex.getBuild());
-                goThroughBuilds(runs);
-                break;
-            }
-        }
+        goThroughBuilds(downstream.getUpstreamCause());
     }
 
     /**
@@ -0,0 +1,408 @@
+package au.com.centrumsystems.hudson.plugin.buildpipeline;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.security.ACL;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.jgrapht.DirectedGraph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static au.com.centrumsystems.hudson.plugin.buildpipeline.ExecutionBuildGraph.Edge;
+import static au.com.centrumsystems.hudson.plugin.buildpipeline.ExecutionBuildGraph.Position;
+import static au.com.centrumsystems.hudson.plugin.buildpipeline.ExecutionBuildGraph.Vertex;
+
+/**
+ * Controller-wide cache of the laid out execution graph of each pipeline instance (root build id to the cell of
+ * each of its builds), shared by the build rows, the header, the cell updates, the pictures and the startup warm-up,
+ * so graphviz only runs again for a pipeline instance when one of its builds changed. Layouts in which every build
+ * completed are kept until evicted by size or by a build event in their graph, the others, and those graphviz failed
+ * to lay out, only for a short while. Concurrent requests for the same pipeline instance share one computation.
+ * <p>
+ * Layouts are shared by all users, so they are computed as SYSTEM; {@link Layout#getCells(Predicate)} only hands out
+ * the cells of the projects the current user may read.
+ */
+final class LayoutCache {
+    /**
+     * A Logger object is used to log messages
+     */
+    private static final Logger LOGGER = Logger.getLogger(LayoutCache.class.getName());
+
+    /**
+     * Maximum number of pipeline instances cached
+     */
+    private static final int MAX_ENTRIES = Integer.getInteger(LayoutCache.class.getName() + ".maxEntries", 1000);
+
+    /**
+     * How long the layout of a running pipeline instance is trusted
+     */
+    private static final long RUNNING_TTL_MILLIS = 10 * 1000;
+
+    /**
+     * Root build ids of the cached layouts each build id appears in; guarded by {@link #CACHE}
+     */
+    private static final Map<String, Set<String>> ROOTS = new HashMap<String, Set<String>>();
+
+    /**
+     * Layouts being computed by root build id, so concurrent viewers wait for the same graphviz run; guarded by
+     * {@link #CACHE}
+     */
+    private static final Map<String, FutureTask<Layout>> COMPUTING = new HashMap<String, FutureTask<Layout>>();
+
+    /**
+     * Cached layouts by root build id, least recently used first
+     */
+    private static final Map<String, Layout> CACHE = new LinkedHashMap<String, Layout>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Layout> eldest) {
+            if (size() > MAX_ENTRIES) {
+                unindex(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Utility class
+     */
+    private LayoutCache() {
+    }
+
+    /**
+     * @param root root build of a pipeline instance
+     * @return its layout, from the cache when possible
+     */
+    static Layout get(final AbstractBuild<?, ?> root) {
+        final String id = root.getExternalizableId();
+        final long now = System.currentTimeMillis();
+        final FutureTask<Layout> task;
+        final boolean owner;
+        synchronized (CACHE) {
+            final Layout cached = CACHE.get(id);
+            if (cached != null && cached.expiresAt > now) {
+                return cached;
+            }
+            final FutureTask<Layout> computing = COMPUTING.get(id);
+            owner = computing == null;
+            if (owner) {
+                task = new FutureTask<Layout>(new Callable<Layout>() {
+                    @Override
+                    public Layout call() {
+                        return computeAndStore(root, now);
+                    }
+                });
+                COMPUTING.put(id, task);
+            } else {
+                task = computing;
+            }
+        }
+        if (owner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (CACHE) {
+                    COMPUTING.remove(id);
+                }
+            }
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Layout(id, Collections.<Cell>emptyList(), true, now);
+        }
+    }
+
+    /**
+     * Lay out a pipeline instance and cache the layout, unless one of its builds changed in the meantime: the build
+     * event evicted the entry and a stale layout must not take its place
+     *
+     * @param root root build of the pipeline instance
+     * @param now  current time
+     * @return the layout
+     */
+    private static Layout computeAndStore(AbstractBuild<?, ?> root, long now) {
+        final String id = root.getExternalizableId();
+        final long generation = BuildEvents.generation();
+        final Layout computed = compute(root, now);
+        final List<String> ids = new ArrayList<String>(computed.cells.size() + 1);
+        ids.add(id);
+        for (Cell cell : computed.cells) {
+            ids.add(cell.build);
+        }
+        if (BuildEvents.changedSince(generation, ids)) {
+            return computed;
+        }
+        synchronized (CACHE) {
+            final Layout previous = CACHE.put(id, computed);
+            if (previous != null) {
+                unindex(previous);
+            }
+            for (Cell cell : computed.cells) {
+                Set<String> roots = ROOTS.get(cell.build);
+                if (roots == null) {
+                    roots = new HashSet<String>();
+                    ROOTS.put(cell.build, roots);
+                }
+                roots.add(id);
+            }
+        }
+        return computed;
+    }
+
+    /**
+     * A build started, completed or was deleted: forget the layouts it appears in, and those its upstream builds
+     * appear in since they have a new downstream build.
+     *
+     * @param r the build
+     */
+    static void onChanged(Run<?, ?> r) {
+        final List<String> ids = BuildEvents.affectedBy(r);
+        synchronized (CACHE) {
+            for (String id : ids) {
+                evict(id);
+                final Set<String> roots = ROOTS.get(id);
+                if (roots != null) {
+                    for (String root : new ArrayList<String>(roots)) {
+                        evict(root);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param root root build id of a cached layout; must hold {@link #CACHE}
+     */
+    private static void evict(String root) {
+        final Layout removed = CACHE.remove(root);
+        if (removed != null) {
+            unindex(removed);
+        }
+    }
+
+    /**
+     * @param layout a layout leaving the cache; must hold {@link #CACHE}
+     */
+    private static void unindex(Layout layout) {
+        for (Cell cell : layout.cells) {
+            final Set<String> roots = ROOTS.get(cell.build);
+            if (roots != null) {
+                roots.remove(layout.root);
+                if (roots.isEmpty()) {
+                    ROOTS.remove(cell.build);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lay out the execution graph of a pipeline instance, as SYSTEM
+     *
+     * @param root root build of the pipeline instance
+     * @param now  current time
+     * @return the layout
+     */
+    private static Layout compute(AbstractBuild<?, ?> root, long now) {
+        final List<Cell> cells = new ArrayList<Cell>();
+        boolean building = false;
+        boolean failed = false;
+        final SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+        try {
+            final ExecutionBuildGraph bg = new ExecutionBuildGraph(new Vertex<AbstractBuild<?, ?>>(root, 0));
+            final DirectedGraph<Vertex<AbstractBuild<?, ?>>, Edge> graph = bg.getGraph();
+            failed = bg.isLayoutFailed();
+            for (Map.Entry<Vertex<AbstractBuild<?, ?>>, Position> entry : bg.getGraphLayout().entrySet()) {
+                final Vertex<AbstractBuild<?, ?>> vertex = entry.getKey();
+                final AbstractBuild<?, ?> build = vertex.getBuild();
+                building |= build.isBuilding();
+                final List<String> next = new ArrayList<String>();
+                for (Edge edge : graph.outgoingEdgesOf(vertex)) {
+                    next.add(edge.getTarget().getBuild().getExternalizableId());
+                }
+                cells.add(new Cell(build, entry.getValue(), Collections.unmodifiableList(next)));
+            }
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.SEVERE, "ExecutionException", e);
+            failed = true;
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.SEVERE, "InterrupedException", e);
+            Thread.currentThread().interrupt();
+            failed = true;
+        } finally {
+            SecurityContextHolder.setContext(old);
+        }
+        LOGGER.fine(String.format("Laid out %s%s", root.toString(), failed ? ", graphviz failed" : ""));
+        final long expiresAt = building || failed ? now + RUNNING_TTL_MILLIS : Long.MAX_VALUE;
+        return new Layout(root.getExternalizableId(), Collections.unmodifiableList(cells), building, expiresAt);
+    }
+
+    /**
+     * Cells of the builds of a pipeline instance
+     */
+    static final class Layout {
+        /**
+         * externalizable id of the root build
+         */
+        private final String root;
+
+        /**
+         * cells of all the builds
+         */
+        private final List<Cell> cells;
+
+        /**
+         * whether one of the builds was still running
+         */
+        private final boolean building;
+
+        /**
+         * when the entry stops being trusted
+         */
+        private final long expiresAt;
+
+        /**
+         * @param root      externalizable id of the root build
+         * @param cells     cells of all the builds
+         * @param building  whether one of the builds was still running
+         * @param expiresAt when the entry stops being trusted
+         */
+        private Layout(String root, List<Cell> cells, boolean building, long expiresAt) {
+            this.root = root;
+            this.cells = cells;
+            this.building = building;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return the cells of all the builds, whoever may read them, for the caches computed as SYSTEM
+         */
+        List<Cell> getCells() {
+            return cells;
+        }
+
+        /**
+         * @param readable projects the current user may read
+         * @return the cells of the builds of those projects
+         */
+        List<Cell> getCells(Predicate<String> readable) {
+            final List<Cell> result = new ArrayList<Cell>(cells.size());
+            for (Cell cell : cells) {
+                if (readable.apply(cell.project)) {
+                    result.add(cell);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return number of columns used by all the builds
+         */
+        int getColumns() {
+            int columns = 0;
+            for (Cell cell : cells) {
+                columns = Math.max(columns, cell.column + 1);
+            }
+            return columns;
+        }
+
+        /**
+         * @return whether one of the builds was still running when laid out
+         */
+        boolean isBuilding() {
+            return building;
+        }
+    }
+
+    /**
+     * Where a build is placed in the grid
+     */
+    static final class Cell {
+        /**
+         * externalizable id of the build
+         */
+        private final String build;
+
+        /**
+         * full name of the project of the build
+         */
+        private final String project;
+
+        /**
+         * row in the build grid
+         */
+        private final int row;
+
+        /**
+         * column in the build grid
+         */
+        private final int column;
+
+        /**
+         * externalizable ids of the downstream builds
+         */
+        private final List<String> downstream;
+
+        /**
+         * @param build      the build
+         * @param position   its layout
+         * @param downstream externalizable ids of its downstream builds
+         */
+        private Cell(AbstractBuild<?, ?> build, Position position, List<String> downstream) {
+            this.build = build.getExternalizableId();
+            this.project = build.getProject().getFullName();
+            this.row = position.x;
+            this.column = position.y;
+            this.downstream = downstream;
+        }
+
+        /**
+         * @return the build, null if it no longer exists or the current user may not read it
+         */
+        AbstractBuild<?, ?> getBuild() {
+            final Run<?, ?> r = Run.fromExternalizableId(build);
+            return r instanceof AbstractBuild ? (AbstractBuild<?, ?>) r : null;
+        }
+
+        String getId() {
+            return build;
+        }
+
+        String getProject() {
+            return project;
+        }
+
+        int getRow() {
+            return row;
+        }
+
+        int getColumn() {
+            return column;
+        }
+
+        /**
+         * @return externalizable ids of the downstream builds, readable by the current user or not
+         */
+        List<String> getDownstream() {
+            return downstream;
+        }
+    }
+}
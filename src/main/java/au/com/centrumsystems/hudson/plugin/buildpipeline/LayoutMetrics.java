@@ -0,0 +1,90 @@
+package au.com.centrumsystems.hudson.plugin.buildpipeline;
+
+import net.sf.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controller-wide counters of the side effects of the pipeline layout (graphviz processes, temporary files) and of
+ * the startup warm-up progress. The load test harness reads them to report the cost of rendering a view.
+ */
+final class LayoutMetrics {
+    /**
+     * Number of graphviz processes launched
+     */
+    private static final AtomicLong FORKS = new AtomicLong();
+
+    /**
+     * Number of temporary files created
+     */
+    private static final AtomicLong TEMP_FILES = new AtomicLong();
+
+    /**
+     * Number of views the startup warm-up has to lay out
+     */
+    private static final AtomicLong WARM_UP_VIEWS = new AtomicLong();
+
+    /**
+     * Number of views laid out by the startup warm-up
+     */
+    private static final AtomicLong WARM_UP_VIEWS_DONE = new AtomicLong();
+
+    /**
+     * Number of rows laid out by the startup warm-up
+     */
+    private static final AtomicLong WARM_UP_ROWS_DONE = new AtomicLong();
+
+    /**
+     * Utility class
+     */
+    private LayoutMetrics() {
+    }
+
+    /**
+     * A graphviz process was launched
+     */
+    static void forked() {
+        FORKS.incrementAndGet();
+    }
+
+    /**
+     * A temporary file was created
+     */
+    static void tempFileCreated() {
+        TEMP_FILES.incrementAndGet();
+    }
+
+    /**
+     * @param views number of views the startup warm-up has to lay out
+     */
+    static void warmUpStarted(int views) {
+        WARM_UP_VIEWS.set(views);
+    }
+
+    /**
+     * The startup warm-up laid out a view
+     */
+    static void warmUpViewDone() {
+        WARM_UP_VIEWS_DONE.incrementAndGet();
+    }
+
+    /**
+     * The startup warm-up laid out a row
+     */
+    static void warmUpRowDone() {
+        WARM_UP_ROWS_DONE.incrementAndGet();
+    }
+
+    /**
+     * @return all counters in machine-readable form
+     */
+    static JSONObject toJSON() {
+        final JSONObject o = new JSONObject();
+        o.put("forks", FORKS.get());
+        o.put("tempFiles", TEMP_FILES.get());
+        o.put("warmUpViews", WARM_UP_VIEWS.get());
+        o.put("warmUpViewsDone", WARM_UP_VIEWS_DONE.get());
+        o.put("warmUpRowsDone", WARM_UP_ROWS_DONE.get());
+        return o;
+    }
+}
@@ -0,0 +1,91 @@
+package au.com.centrumsystems.hudson.plugin.buildpipeline;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+/**
+ * Keeps a controller-wide generation number which is bumped whenever a build starts, completes or is deleted,
+ * so the pipeline layouts know when something they show may have changed. Also keeps the {@link DownstreamCache},
+ * the {@link LayoutCache} and the {@link StageStatistics} up to date.
+ */
+@Extension
+public class PipelineBuildListener extends RunListener<Run> {
+    /**
+     * Guards {@link #generation} and wakes up the threads waiting for a build change
+     */
+    private static final Object LOCK = new Object();
+
+    /**
+     * Incremented on every build event
+     */
+    private static long generation;
+
+    /**
+     * @return the current generation of build events
+     */
+    public static long getGeneration() {
+        synchronized (LOCK) {
+            return generation;
+        }
+    }
+
+    /**
+     * Block until the generation moves past the given one or the timeout elapses
+     *
+     * @param since         generation already seen by the caller
+     * @param timeoutMillis maximum time to wait
+     * @return the current generation
+     * @throws InterruptedException
+     */
+    public static long awaitChange(long since, long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (LOCK) {
+            long remaining = timeoutMillis;
+            while (generation == since && remaining > 0) {
+                LOCK.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return generation;
+        }
+    }
+
+    /**
+     * Record a build event and wake up the waiting threads
+     */
+    private static void fireChanged() {
+        synchronized (LOCK) {
+            generation++;
+            LOCK.notifyAll();
+        }
+    }
+
+    @Override
+    public void onStarted(Run r, TaskListener listener) {
+        BuildEvents.record(r);
+        DownstreamCache.onChanged(r);
+        LayoutCache.onChanged(r);
+        fireChanged();
+    }
+
+    @Override
+    public void onCompleted(Run r, TaskListener listener) {
+        BuildEvents.record(r);
+        DownstreamCache.onChanged(r);
+        LayoutCache.onChanged(r);
+        if (r instanceof AbstractBuild) {
+            StageStatistics.get().record((AbstractBuild<?, ?>) r);
+        }
+        fireChanged();
+    }
+
+    @Override
+    public void onDeleted(Run r) {
+        BuildEvents.record(r);
+        DownstreamCache.onChanged(r);
+        LayoutCache.onChanged(r);
+        fireChanged();
+    }
+}
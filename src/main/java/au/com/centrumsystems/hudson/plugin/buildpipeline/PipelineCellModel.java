@@ -0,0 +1,429 @@
+package au.com.centrumsystems.hudson.plugin.buildpipeline;
+
+import com.google.common.base.Predicate;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Executor;
+import hudson.model.Result;
+import hudson.security.ACL;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+
+/**
+ * Per-view model of the pipeline cells, used for pushing only the changed cells to the clients.
+ * Every change gets an id made of the model epoch and a sequence number, so a client can resume from the last one
+ * it received, and gets a full reset when the model was recreated meanwhile (restart, view reconfigured).
+ * <p>
+ * The model is computed as SYSTEM and shared by all viewers; each client only gets the cells of the projects it
+ * may read.
+ */
+final class PipelineCellModel {
+    /**
+     * Number of change events kept for resuming clients
+     */
+    private static final int MAX_HISTORY = 1000;
+
+    /**
+     * How often the progress of running builds is re-read when no build event arrives
+     */
+    static final long RUNNING_REFRESH_MILLIS = 5000;
+
+    /**
+     * Number of change events kept by this model
+     */
+    private final int maxHistory;
+
+    /**
+     * Guards the whole model
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Current cells by key
+     */
+    private final Map<String, Cell> cells = new LinkedHashMap<String, Cell>();
+
+    /**
+     * Recent change events, oldest first
+     */
+    private final LinkedList<Event> history = new LinkedList<Event>();
+
+    /**
+     * When the model was created, distinguishes its sequence numbers from those of a previous model
+     */
+    private final long epoch = System.currentTimeMillis();
+
+    /**
+     * Sequence number of the last change
+     */
+    private long sequence;
+
+    /**
+     * Build event generation the cells were computed for
+     */
+    private long computedGeneration = -1;
+
+    /**
+     * When the cells were computed
+     */
+    private long computedAt;
+
+    /**
+     * Whether one of the cells was still building when computed
+     */
+    private boolean running;
+
+    /**
+     * First job the cells were computed for
+     */
+    private String computedFor;
+
+    /**
+     * Model keeping the last {@value #MAX_HISTORY} change events
+     */
+    PipelineCellModel() {
+        this(MAX_HISTORY);
+    }
+
+    /**
+     * @param maxHistory number of change events kept for resuming clients
+     */
+    PipelineCellModel(int maxHistory) {
+        this.maxHistory = maxHistory;
+    }
+
+    /**
+     * Recompute the cells if a build event happened since the last computation, or if a running build may have
+     * progressed, and record the differences as change events. The cells are laid out without holding the model, so
+     * clients keep getting the known changes meanwhile; a computation older than the one already applied is dropped.
+     *
+     * @param start      first job of the pipeline
+     * @param rows       number of pipeline instances displayed
+     * @param generation current build event generation
+     */
+    void refresh(AbstractProject<?, ?> start, int rows, long generation) {
+        final long now = System.currentTimeMillis();
+        final String startName = start == null ? null : start.getFullName();
+        synchronized (lock) {
+            if (isComputedFor(startName) && generation == computedGeneration
+                    && !(running && now - computedAt >= RUNNING_REFRESH_MILLIS)) {
+                return;
+            }
+        }
+        final Map<String, Cell> latest;
+        final SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+        try {
+            latest = compute(start, rows);
+        } finally {
+            SecurityContextHolder.setContext(old);
+        }
+        synchronized (lock) {
+            if (isComputedFor(startName) && (generation < computedGeneration
+                    || generation == computedGeneration && now < computedAt)) {
+                return;
+            }
+            for (Cell cell : latest.values()) {
+                if (!cell.equals(cells.get(cell.key))) {
+                    record("cell", cell.toJSON(), cell.rootProject, cell.project);
+                }
+            }
+            for (Cell cell : cells.values()) {
+                if (!latest.containsKey(cell.key)) {
+                    final JSONObject removed = new JSONObject();
+                    removed.put("key", cell.key);
+                    record("remove", removed, cell.rootProject, cell.project);
+                }
+            }
+            cells.clear();
+            cells.putAll(latest);
+            running = false;
+            for (Cell cell : latest.values()) {
+                running |= cell.building;
+            }
+            computedGeneration = generation;
+            computedAt = now;
+            computedFor = startName;
+        }
+    }
+
+    /**
+     * @param startName full name of a first job, possibly null; must hold {@link #lock}
+     * @return whether the cells were computed for it
+     */
+    private boolean isComputedFor(String startName) {
+        return startName == null ? computedFor == null : startName.equals(computedFor);
+    }
+
+    /**
+     * Write the changes after the given event id as Server-Sent Events. If the client is too far behind, or the id
+     * comes from another epoch, a full snapshot is sent instead.
+     *
+     * @param writer   response writer
+     * @param lastSeen id of the last event received by the client, or null for none
+     * @param readable projects the client may see
+     * @return the id of the event the client is now up to date with
+     */
+    String writeSince(PrintWriter writer, String lastSeen, Predicate<String> readable) {
+        synchronized (lock) {
+            final long seen = sequenceOf(lastSeen);
+            if (seen == sequence) {
+                return lastSeen;
+            }
+            final boolean resumable = seen >= 0 && seen < sequence
+                    && (history.isEmpty() || history.getFirst().seq <= seen + 1);
+            if (resumable) {
+                for (Event event : history) {
+                    if (event.seq > seen && event.isVisible(readable)) {
+                        event.write(writer, epoch);
+                    }
+                }
+            } else {
+                final JSONArray all = new JSONArray();
+                for (Cell cell : cells.values()) {
+                    if (readable.apply(cell.rootProject) && readable.apply(cell.project)) {
+                        all.add(cell.toJSON());
+                    }
+                }
+                new Event(sequence, "reset", all.toString()).write(writer, epoch);
+            }
+            return epoch + "-" + sequence;
+        }
+    }
+
+    /**
+     * @param id an event id, possibly null or from another epoch
+     * @return its sequence number, or -1 if it doesn't belong to this model
+     */
+    private long sequenceOf(String id) {
+        final String prefix = epoch + "-";
+        if (id == null || !id.trim().startsWith(prefix)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(id.trim().substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param type     event type
+     * @param data     event payload
+     * @param projects projects a client must be able to read to get the event
+     */
+    private void record(String type, JSONObject data, String... projects) {
+        history.addLast(new Event(++sequence, type, data.toString(), projects));
+        while (history.size() > maxHistory) {
+            history.removeFirst();
+        }
+    }
+
+    /**
+     * Lay out the latest pipeline instances and collect their cells
+     *
+     * @param start first job of the pipeline
+     * @param rows  number of pipeline instances
+     * @return cells by key
+     */
+    private static Map<String, Cell> compute(AbstractProject<?, ?> start, int rows) {
+        final Map<String, Cell> result = new LinkedHashMap<String, Cell>();
+        if (start == null) {
+            return result;
+        }
+        final Iterator<? extends AbstractBuild<?, ?>> it = start.getBuilds().iterator();
+        for (int i = 0; i < rows && it.hasNext(); i++) {
+            final AbstractBuild<?, ?> root = it.next();
+            for (LayoutCache.Cell c : LayoutCache.get(root).getCells()) {
+                final AbstractBuild<?, ?> build = c.getBuild();
+                if (build != null) {
+                    final Cell cell = new Cell(root, c.getRow(), c.getColumn(), build);
+                    result.put(cell.key, cell);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * What a client needs to know about one cell of the grid
+     */
+    private static final class Cell {
+        /**
+         * root build id, row and column
+         */
+        private final String key;
+
+        /**
+         * externalizable id of the root build of the pipeline instance
+         */
+        private final String root;
+
+        /**
+         * full name of the project of the root build
+         */
+        private final String rootProject;
+
+        /**
+         * full name of the project of the build in the cell
+         */
+        private final String project;
+
+        /**
+         * row of the cell in the build grid
+         */
+        private final int row;
+
+        /**
+         * column of the cell in the build grid
+         */
+        private final int column;
+
+        /**
+         * externalizable id of the build in the cell
+         */
+        private final String build;
+
+        /**
+         * url of the build, relative to the Jenkins root
+         */
+        private final String url;
+
+        /**
+         * result of the build, or BUILDING
+         */
+        private final String status;
+
+        /**
+         * whether the build is still running
+         */
+        private final boolean building;
+
+        /**
+         * estimated progress in percent, -1 if unknown
+         */
+        private final int progress;
+
+        /**
+         * @param rootBuild root build of the pipeline instance
+         * @param row       row of the build in the grid
+         * @param column    column of the build in the grid
+         * @param b         the build in the cell
+         */
+        private Cell(AbstractBuild<?, ?> rootBuild, int row, int column, AbstractBuild<?, ?> b) {
+            this.root = rootBuild.getExternalizableId();
+            this.rootProject = rootBuild.getProject().getFullName();
+            this.project = b.getProject().getFullName();
+            this.row = row;
+            this.column = column;
+            this.key = root + ":" + row + ":" + column;
+            this.build = b.getExternalizableId();
+            this.url = b.getUrl();
+            this.building = b.isBuilding();
+            final Result result = b.getResult();
+            this.status = building || result == null ? "BUILDING" : result.toString();
+            final Executor executor = b.getExecutor();
+            this.progress = building && executor != null ? executor.getProgress() : -1;
+        }
+
+        /**
+         * @return the cell as a client-side event payload
+         */
+        private JSONObject toJSON() {
+            final JSONObject o = new JSONObject();
+            o.put("key", key);
+            o.put("root", root);
+            o.put("row", row);
+            o.put("column", column);
+            o.put("build", build);
+            o.put("url", url);
+            o.put("status", status);
+            o.put("progress", progress);
+            return o;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Cell)) {
+                return false;
+            }
+            final Cell other = (Cell) o;
+            return key.equals(other.key) && build.equals(other.build) && status.equals(other.status)
+                    && building == other.building && progress == other.progress;
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() * 31 + build.hashCode();
+        }
+    }
+
+    /**
+     * One change pushed to the clients
+     */
+    private static final class Event {
+        /**
+         * sequence number, sent as the event id
+         */
+        private final long seq;
+
+        /**
+         * event type: cell, remove or reset
+         */
+        private final String type;
+
+        /**
+         * JSON payload
+         */
+        private final String data;
+
+        /**
+         * projects a client must be able to read to get the event
+         */
+        private final String[] projects;
+
+        /**
+         * @param seq      sequence number
+         * @param type     event type
+         * @param data     JSON payload
+         * @param projects projects a client must be able to read to get the event
+         */
+        private Event(long seq, String type, String data, String... projects) {
+            this.seq = seq;
+            this.type = type;
+            this.data = data;
+            this.projects = projects;
+        }
+
+        /**
+         * @param readable projects the client may see
+         * @return whether the client may get the event
+         */
+        private boolean isVisible(Predicate<String> readable) {
+            for (String project : projects) {
+                if (!readable.apply(project)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @param writer response writer
+         * @param epoch  epoch of the model
+         */
+        private void write(PrintWriter writer, long epoch) {
+            writer.print("id: " + epoch + "-" + seq + "\n");
+            writer.print("event: " + type + "\n");
+            writer.print("data: " + data + "\n\n");
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package au.com.centrumsystems.hudson.plugin.buildpipeline;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a controller-wide generation number which is bumped whenever a job is created, renamed, deleted or
+ * reconfigured, so the cached pipeline layouts know when the job configuration changed.
+ */
+@Extension
+public class PipelineItemListener extends ItemListener {
+    /**
+     * Incremented on every job configuration change
+     */
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    /**
+     * @return the current generation of job configuration changes
+     */
+    public static long getGeneration() {
+        return GENERATION.get();
+    }
+
+    @Override
+    public void onCreated(Item item) {
+        GENERATION.incrementAndGet();
+    }
+
+    @Override
+    public void onUpdated(Item item) {
+        GENERATION.incrementAndGet();
+    }
+
+    @Override
+    public void onRenamed(Item item, String oldName, String newName) {
+        GENERATION.incrementAndGet();
+    }
+
+    @Override
+    public void onDeleted(Item item) {
+        GENERATION.incrementAndGet();
+    }
+}
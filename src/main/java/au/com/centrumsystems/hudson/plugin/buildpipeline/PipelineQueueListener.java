@@ -0,0 +1,55 @@
+package au.com.centrumsystems.hudson.plugin.buildpipeline;
+
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.queue.QueueListener;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers when the items leaving the queue entered it, in memory only, until their build completes and is
+ * recorded in the {@link StageStatistics}, so the time it waited can be told apart from its duration.
+ */
+@Extension
+public class PipelineQueueListener extends QueueListener {
+    /**
+     * Maximum number of items remembered, for those whose build never completes; a build completing after that many
+     * other items left the queue has no known queue time
+     */
+    private static final int MAX_ENTRIES = 10000;
+
+    /**
+     * When each item entered the queue, by queue id, oldest first
+     */
+    private static final Map<Long, Long> IN_QUEUE_SINCE = new LinkedHashMap<Long, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    @Override
+    public void onLeft(Queue.LeftItem li) {
+        if (!li.isCancelled()) {
+            synchronized (IN_QUEUE_SINCE) {
+                IN_QUEUE_SINCE.put(li.getId(), li.getInQueueSince());
+            }
+        }
+    }
+
+    /**
+     * Forget when the queue item of a build entered the queue, and tell how long it waited
+     *
+     * @param r a completed build
+     * @return how long it waited in the queue in milliseconds, -1 if unknown
+     */
+    static long takeQueueMillis(Run<?, ?> r) {
+        final Long since;
+        synchronized (IN_QUEUE_SINCE) {
+            since = IN_QUEUE_SINCE.remove(r.getQueueId());
+        }
+        return since == null ? -1 : Math.max(0, r.getStartTimeInMillis() - since);
+    }
+}
@@ -0,0 +1,164 @@
+package au.com.centrumsystems.hudson.plugin.buildpipeline;
+
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Result;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Renders the execution graph of a pipeline instance to a compact SVG picture, for wallboards. The layout comes from
+ * the {@link LayoutCache}, so drawing a picture is cheap and is done for every request, with only the builds the
+ * current user may read.
+ */
+final class PipelineSvgRenderer {
+    /**
+     * How long browsers may reuse the picture of a running pipeline instance, in seconds
+     */
+    static final long RUNNING_MAX_AGE_SECONDS = 5;
+
+    /**
+     * How long browsers may reuse the picture of a completed pipeline instance before revalidating it, in seconds;
+     * later manual or retried steps can still add builds to it
+     */
+    static final long COMPLETE_MAX_AGE_SECONDS = 60 * 60;
+
+    /**
+     * Width of a build box
+     */
+    private static final int BOX_WIDTH = 160;
+
+    /**
+     * Height of a build box
+     */
+    private static final int BOX_HEIGHT = 40;
+
+    /**
+     * Space between two boxes
+     */
+    private static final int GAP = 20;
+
+    /**
+     * Utility class
+     */
+    private PipelineSvgRenderer() {
+    }
+
+    /**
+     * @param root root build of a pipeline instance
+     * @return its picture, as seen by the current user
+     */
+    static Picture render(AbstractBuild<?, ?> root) {
+        final LayoutCache.Layout layout = LayoutCache.get(root);
+        final Map<String, LayoutCache.Cell> visible = new LinkedHashMap<String, LayoutCache.Cell>();
+        final Map<String, AbstractBuild<?, ?>> builds = new HashMap<String, AbstractBuild<?, ?>>();
+        for (LayoutCache.Cell cell : layout.getCells(new ReadableProjects())) {
+            final AbstractBuild<?, ?> build = cell.getBuild();
+            if (build != null) {
+                visible.put(cell.getId(), cell);
+                builds.put(cell.getId(), build);
+            }
+        }
+        final StringBuilder body = new StringBuilder();
+        int rows = 0;
+        int columns = 0;
+        for (LayoutCache.Cell from : visible.values()) {
+            for (String id : from.getDownstream()) {
+                final LayoutCache.Cell to = visible.get(id);
+                if (to != null) {
+                    body.append(String.format("<line x1=\"%d\" y1=\"%d\" x2=\"%d\" y2=\"%d\"/>",
+                            left(from) + BOX_WIDTH, top(from) + BOX_HEIGHT / 2, left(to), top(to) + BOX_HEIGHT / 2));
+                }
+            }
+        }
+        for (LayoutCache.Cell cell : visible.values()) {
+            final AbstractBuild<?, ?> build = builds.get(cell.getId());
+            rows = Math.max(rows, cell.getRow() + 1);
+            columns = Math.max(columns, cell.getColumn() + 1);
+            body.append(String.format("<rect x=\"%d\" y=\"%d\" width=\"%d\" height=\"%d\" fill=\"%s\"/>"
+                            + "<text x=\"%d\" y=\"%d\">%s</text>",
+                    left(cell), top(cell), BOX_WIDTH, BOX_HEIGHT, color(build),
+                    left(cell) + GAP / 2, top(cell) + BOX_HEIGHT / 2 + 4, Util.xmlEscape(build.getFullDisplayName())));
+        }
+        final String svg = String.format("<svg xmlns=\"http://www.w3.org/2000/svg\""
+                        + " width=\"%d\" height=\"%d\"><style>line{stroke:#666}text{font:12px sans-serif}</style>%s</svg>",
+                columns * (BOX_WIDTH + GAP) + GAP, rows * (BOX_HEIGHT + GAP) + GAP, body);
+        return new Picture(svg, !layout.isBuilding());
+    }
+
+    /**
+     * @param cell cell of a build
+     * @return x coordinate of its box
+     */
+    private static int left(LayoutCache.Cell cell) {
+        return GAP + cell.getColumn() * (BOX_WIDTH + GAP);
+    }
+
+    /**
+     * @param cell cell of a build
+     * @return y coordinate of its box
+     */
+    private static int top(LayoutCache.Cell cell) {
+        return GAP + cell.getRow() * (BOX_HEIGHT + GAP);
+    }
+
+    /**
+     * @param build a build
+     * @return fill color of its box
+     */
+    private static String color(AbstractBuild<?, ?> build) {
+        final Result result = build.getResult();
+        if (build.isBuilding() || result == null) {
+            return "#8cb4e6";
+        } else if (result == Result.SUCCESS) {
+            return "#8fd18f";
+        } else if (result == Result.UNSTABLE) {
+            return "#f0dc6e";
+        } else if (result == Result.FAILURE) {
+            return "#e68c8c";
+        } else {
+            return "#cccccc";
+        }
+    }
+
+    /**
+     * A rendered picture
+     */
+    static final class Picture {
+        /**
+         * the SVG document
+         */
+        private final String svg;
+
+        /**
+         * whether every build of the pipeline instance had completed
+         */
+        private final boolean complete;
+
+        /**
+         * @param svg      the SVG document
+         * @param complete whether every build of the pipeline instance had completed
+         */
+        private Picture(String svg, boolean complete) {
+            this.svg = svg;
+            this.complete = complete;
+        }
+
+        public String getSvg() {
+            return svg;
+        }
+
+        public boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * @return entity tag of the picture
+         */
+        public String getETag() {
+            return "\"" + Integer.toHexString(svg.hashCode()) + "-" + svg.length() + "\"";
+        }
+    }
+}
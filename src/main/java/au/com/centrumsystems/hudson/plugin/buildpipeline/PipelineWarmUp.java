@@ -0,0 +1,267 @@
+package au.com.centrumsystems.hudson.plugin.buildpipeline;
+
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Item;
+import hudson.model.MyViewsProperty;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.View;
+import hudson.model.ViewGroup;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Precomputes the layouts of the pipeline views in the background after startup, most recently viewed first, so
+ * the first viewers don't pay for traversing every row. The views are looked up at the top level, in folders and in
+ * the users' own views. The work runs on a single low priority thread, pauses while builds are waiting for an
+ * executor, and reports its progress through {@link LayoutMetrics}.
+ */
+public final class PipelineWarmUp implements Saveable {
+    /**
+     * A Logger object is used to log messages
+     */
+    private static final Logger LOGGER = Logger.getLogger(PipelineWarmUp.class.getName());
+
+    /**
+     * Set to true to skip the warm-up
+     */
+    private static final boolean DISABLED = Boolean.getBoolean(PipelineWarmUp.class.getName() + ".disabled");
+
+    /**
+     * Time left to Jenkins to finish starting before warming up
+     */
+    private static final long INITIAL_DELAY_MILLIS = 30 * 1000;
+
+    /**
+     * Pause between two rows
+     */
+    private static final long THROTTLE_MILLIS = Long.getLong(PipelineWarmUp.class.getName() + ".throttleMillis", 200);
+
+    /**
+     * Longest pause between two rows while builds are waiting for an executor, so a stuck build can't stall the
+     * warm-up
+     */
+    private static final long MAX_PAUSE_MILLIS = 60 * 1000;
+
+    /**
+     * Minimum time between two saves of the view usage
+     */
+    private static final long SAVE_INTERVAL_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Lazily loaded singleton
+     */
+    private static PipelineWarmUp instance;
+
+    /**
+     * When each view was last displayed, by view url
+     */
+    private final Map<String, Long> lastViewed = new HashMap<String, Long>();
+
+    /**
+     * When the view usage was last saved
+     */
+    private transient long lastSaved;
+
+    /**
+     * @return the view usage, loaded from disk on first use
+     */
+    static PipelineWarmUp get() {
+        synchronized (PipelineWarmUp.class) {
+            if (instance == null) {
+                instance = new PipelineWarmUp();
+                final XmlFile file = getConfigFile();
+                if (file != null && file.exists()) {
+                    try {
+                        file.unmarshal(instance);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+                    }
+                }
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * @return the file the view usage is persisted in, null if Jenkins is not running
+     */
+    private static XmlFile getConfigFile() {
+        final Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+        return new XmlFile(Jenkins.XSTREAM, new File(jenkins.getRootDir(), PipelineWarmUp.class.getName() + ".xml"));
+    }
+
+    /**
+     * Record that a view was displayed
+     *
+     * @param view the view
+     */
+    void viewed(View view) {
+        final long now = System.currentTimeMillis();
+        final boolean save;
+        synchronized (lastViewed) {
+            lastViewed.put(view.getUrl(), now);
+            save = now - lastSaved >= SAVE_INTERVAL_MILLIS;
+            if (save) {
+                lastSaved = now;
+            }
+        }
+        if (save) {
+            try {
+                save();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save pipeline view usage", e);
+            }
+        }
+    }
+
+    /**
+     * @param view a view
+     * @return when it was last displayed, 0 if never
+     */
+    private long lastViewed(View view) {
+        synchronized (lastViewed) {
+            final Long time = lastViewed.get(view.getUrl());
+            return time == null ? 0 : time;
+        }
+    }
+
+    @Override
+    public void save() throws IOException {
+        final XmlFile file = getConfigFile();
+        if (file != null) {
+            synchronized (lastViewed) {
+                file.write(this);
+            }
+        }
+    }
+
+    /**
+     * Start the warm-up once the jobs are loaded.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void start() {
+        if (DISABLED) {
+            return;
+        }
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+                try {
+                    Thread.sleep(INITIAL_DELAY_MILLIS);
+                    get().warmUp();
+                } catch (InterruptedException e) {
+                    LOGGER.log(Level.FINE, "Pipeline warm-up interrupted", e);
+                } finally {
+                    SecurityContextHolder.setContext(old);
+                }
+            }
+        }, "Build pipeline layout warm-up");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Lay out the views, most recently viewed first
+     *
+     * @throws InterruptedException
+     */
+    private void warmUp() throws InterruptedException {
+        final Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return;
+        }
+        final List<BuildPipelineView> views = new ArrayList<BuildPipelineView>();
+        collect(jenkins, views);
+        for (Item item : jenkins.getAllItems()) {
+            if (item instanceof ViewGroup) {
+                collect((ViewGroup) item, views);
+            }
+        }
+        for (User user : User.getAll()) {
+            final MyViewsProperty myViews = user.getProperty(MyViewsProperty.class);
+            if (myViews != null) {
+                collect(myViews, views);
+            }
+        }
+        Collections.sort(views, new Comparator<BuildPipelineView>() {
+            @Override
+            public int compare(BuildPipelineView v1, BuildPipelineView v2) {
+                return Long.valueOf(lastViewed(v2)).compareTo(lastViewed(v1));
+            }
+        });
+        LayoutMetrics.warmUpStarted(views.size());
+        final long startedAt = System.currentTimeMillis();
+        for (BuildPipelineView view : views) {
+            try {
+                ((DownStreamRunDeclarerGridBuilder) view.getGridBuilder()).warmUp(view, new Runnable() {
+                    @Override
+                    public void run() {
+                        throttle();
+                        LayoutMetrics.warmUpRowDone();
+                    }
+                });
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to warm up " + view.getViewUrl(), e);
+            }
+            LayoutMetrics.warmUpViewDone();
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        LOGGER.info(String.format("Warmed up %d pipeline views in %d ms", views.size(), System.currentTimeMillis() - startedAt));
+    }
+
+    /**
+     * Let the builds go first: pause between rows, and while builds are ready to run but waiting for an executor.
+     * Items blocked or waiting for their quiet period don't compete for executors, and the pause is bounded.
+     */
+    private static void throttle() {
+        try {
+            Thread.sleep(THROTTLE_MILLIS);
+            final Jenkins jenkins = Jenkins.getInstance();
+            final long deadline = System.currentTimeMillis() + MAX_PAUSE_MILLIS;
+            while (jenkins != null && jenkins.getQueue().countBuildableItems() > 0
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(THROTTLE_MILLIS * 10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param group  a view group
+     * @param result the pipeline views using {@link DownStreamRunDeclarerGridBuilder} found in the group, recursively
+     */
+    private static void collect(ViewGroup group, List<BuildPipelineView> result) {
+        for (View view : group.getViews()) {
+            if (view instanceof BuildPipelineView
+                    && ((BuildPipelineView) view).getGridBuilder() instanceof DownStreamRunDeclarerGridBuilder) {
+                result.add((BuildPipelineView) view);
+            } else if (view instanceof ViewGroup) {
+                collect((ViewGroup) view, result);
+            }
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package au.com.centrumsystems.hudson.plugin.buildpipeline;
+
+import com.google.common.base.Predicate;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Run;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static au.com.centrumsystems.hudson.plugin.buildpipeline.ExecutionBuildGraph.Position;
+
+/**
+ * Per-view cache of the header (project) row of the pipeline, laid out from the union of the project to project
+ * edges of the displayed pipeline instances, the way {@link ExecutionBuildGraph} places builds, so every project of
+ * every displayed topology gets a cell.
+ * <p>
+ * The topology of a pipeline instance is cached controller-wide once all its builds completed, until a build event
+ * touches one of them, so a build event only walks the new and running instances. The placement of the projects is
+ * only recomputed when a new topology appears among the displayed instances or a job configuration changes; the
+ * {@link ProjectForm}s are only rebuilt when a build event happened, since that is when their status may change.
+ * <p>
+ * The cache is shared by all viewers of the view, so it is computed as SYSTEM and every request only gets the cells
+ * of the projects it may read.
+ */
+final class ProjectGridCache {
+    /**
+     * A Logger object is used to log messages
+     */
+    private static final Logger LOGGER = Logger.getLogger(ProjectGridCache.class.getName());
+
+    /**
+     * Maximum number of pipeline instance topologies cached
+     */
+    private static final int MAX_TOPOLOGIES = Integer.getInteger(ProjectGridCache.class.getName() + ".maxTopologies",
+            1000);
+
+    /**
+     * Topologies of completed pipeline instances by root build id, least recently used first
+     */
+    private static final Map<String, Topology> TOPOLOGIES = new LinkedHashMap<String, Topology>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Topology> eldest) {
+            return size() > MAX_TOPOLOGIES;
+        }
+    };
+
+    /**
+     * Guards the whole cache
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Job configuration generation, first job and topologies the placements were computed for
+     */
+    private String topologyKey;
+
+    /**
+     * Full name of the project placed in each cell
+     */
+    private Map<Position, String> placements = Collections.emptyMap();
+
+    /**
+     * Project forms for the placements, as seen by SYSTEM, null when they have to be rebuilt
+     */
+    private Map<Position, ProjectForm> forms;
+
+    /**
+     * Build event generation the forms were built for
+     */
+    private long formsGeneration;
+
+    /**
+     * Job configuration generation the forms were built for
+     */
+    private long formsConfigGeneration;
+
+    /**
+     * First job and number of instances the forms were built for
+     */
+    private String formsFor;
+
+    /**
+     * @param start    first job of the pipeline
+     * @param rows     number of pipeline instances displayed
+     * @param readable projects the current user may read
+     * @return the project forms by cell, empty if the pipeline has never run
+     */
+    Map<Position, ProjectForm> get(AbstractProject<?, ?> start, int rows, Predicate<String> readable) {
+        if (start == null) {
+            return Collections.emptyMap();
+        }
+        synchronized (lock) {
+            return visible(refresh(start, rows), readable);
+        }
+    }
+
+    /**
+     * Placements as last computed for displaying the view, computed now only if the view was not displayed yet, so
+     * reading them costs the number of cells, not a walk of the displayed rows.
+     *
+     * @param start    first job of the pipeline
+     * @param rows     number of pipeline instances displayed
+     * @param readable projects the current user may read
+     * @return the full name of the project placed in each cell of the header, empty if the pipeline has never run
+     */
+    Map<Position, String> getPlacements(AbstractProject<?, ?> start, int rows, Predicate<String> readable) {
+        if (start == null) {
+            return Collections.emptyMap();
+        }
+        synchronized (lock) {
+            if (forms == null || !(start.getFullName() + "#" + rows).equals(formsFor)) {
+                refresh(start, rows);
+            }
+            return visible(placements, readable);
+        }
+    }
+
+    /**
+     * Bring the placements and the forms up to date, as SYSTEM. Must hold {@link #lock}.
+     *
+     * @param start first job of the pipeline
+     * @param rows  number of pipeline instances displayed
+     * @return the project forms of every cell
+     */
+    private Map<Position, ProjectForm> refresh(AbstractProject<?, ?> start, int rows) {
+        final long generation = PipelineBuildListener.getGeneration();
+        final long configGeneration = PipelineItemListener.getGeneration();
+        final String requestedFor = start.getFullName() + "#" + rows;
+        if (forms != null && generation == formsGeneration && configGeneration == formsConfigGeneration
+                && requestedFor.equals(formsFor)) {
+            return forms;
+        }
+        final SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+        try {
+            final Map<String, Topology> topologies = topologies(start, rows);
+            final String key = configGeneration + "|" + requestedFor + "|" + new TreeSet<String>(topologies.keySet());
+            if (!key.equals(topologyKey)) {
+                placements = place(start.getFullName(), topologies.values());
+                topologyKey = key;
+                StageStatistics.get().track(start.getFullName(), placements);
+            }
+            final Jenkins jenkins = Jenkins.getInstance();
+            final Map<Position, ProjectForm> latest = new LinkedHashMap<Position, ProjectForm>();
+            if (jenkins != null) {
+                for (Map.Entry<Position, String> entry : placements.entrySet()) {
+                    final AbstractProject<?, ?> project = jenkins.getItemByFullName(entry.getValue(), AbstractProject.class);
+                    if (project != null) {
+                        latest.put(entry.getKey(), ProjectForm.as(project));
+                    }
+                }
+            }
+            forms = Collections.unmodifiableMap(latest);
+        } finally {
+            SecurityContextHolder.setContext(old);
+        }
+        formsGeneration = generation;
+        formsConfigGeneration = configGeneration;
+        formsFor = requestedFor;
+        return forms;
+    }
+
+    /**
+     * @param cells    something by cell of the placements
+     * @param readable projects the current user may read
+     * @return the cells whose project the current user may read
+     */
+    private <T> Map<Position, T> visible(Map<Position, T> cells, Predicate<String> readable) {
+        final Map<Position, T> result = new LinkedHashMap<Position, T>();
+        for (Map.Entry<Position, T> entry : cells.entrySet()) {
+            if (readable.apply(placements.get(entry.getKey()))) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Distinct topologies of the displayed pipeline instances
+     *
+     * @param start first job of the pipeline
+     * @param rows  number of pipeline instances displayed
+     * @return the topologies by signature, most recent first
+     */
+    private static Map<String, Topology> topologies(AbstractProject<?, ?> start, int rows) {
+        final Map<String, Topology> topologies = new LinkedHashMap<String, Topology>();
+        final Iterator<? extends AbstractBuild<?, ?>> it = start.getBuilds().iterator();
+        for (int i = 0; i < rows && it.hasNext(); i++) {
+            try {
+                final Topology topology = topology(it.next());
+                if (!topologies.containsKey(topology.signature)) {
+                    topologies.put(topology.signature, topology);
+                }
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.SEVERE, "ExecutionException", e);
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.SEVERE, "InterrupedException", e);
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return topologies;
+    }
+
+    /**
+     * Project to project edges reachable from a root build, from the cache while none of its builds changed,
+     * otherwise read from the {@link DownstreamCache}
+     *
+     * @param root root build of a pipeline instance
+     * @return its topology
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    private static Topology topology(AbstractBuild<?, ?> root) throws ExecutionException, InterruptedException {
+        final String id = root.getExternalizableId();
+        synchronized (TOPOLOGIES) {
+            final Topology cached = TOPOLOGIES.get(id);
+            if (cached != null && !BuildEvents.changedSince(cached.generation, cached.builds)) {
+                return cached;
+            }
+        }
+        final long generation = BuildEvents.generation();
+        final Map<String, List<String>> next = new LinkedHashMap<String, List<String>>();
+        final Set<String> edges = new TreeSet<String>();
+        final Set<String> visited = new HashSet<String>();
+        boolean building = false;
+        final LinkedList<AbstractBuild<?, ?>> queue = new LinkedList<AbstractBuild<?, ?>>();
+        queue.add(root);
+        visited.add(id);
+        while (!queue.isEmpty()) {
+            final AbstractBuild<?, ?> build = queue.removeFirst();
+            building |= build.isBuilding();
+            final String from = build.getProject().getFullName();
+            for (String downstream : DownstreamCache.get(build).getIds()) {
+                final String to = ReadableProjects.projectOf(downstream);
+                if (edges.add(from + ">" + to)) {
+                    List<String> targets = next.get(from);
+                    if (targets == null) {
+                        targets = new ArrayList<String>();
+                        next.put(from, targets);
+                    }
+                    targets.add(to);
+                }
+                if (visited.add(downstream)) {
+                    final Run<?, ?> r = Run.fromExternalizableId(downstream);
+                    if (r instanceof AbstractBuild) {
+                        queue.add((AbstractBuild<?, ?>) r);
+                    }
+                }
+            }
+        }
+        final Topology topology = new Topology(edges.toString(), next, visited, generation);
+        if (!building) {
+            synchronized (TOPOLOGIES) {
+                TOPOLOGIES.put(id, topology);
+            }
+        }
+        return topology;
+    }
+
+    /**
+     * Lay out the union of the topologies of the displayed pipeline instances, from the first job
+     *
+     * @param first      full name of the first job
+     * @param topologies topologies, most recent first, whose edges are followed first
+     * @return full name of the project placed in each cell
+     */
+    private static Map<Position, String> place(String first, Collection<Topology> topologies) {
+        final Map<String, List<String>> next = new LinkedHashMap<String, List<String>>();
+        for (Topology topology : topologies) {
+            for (Map.Entry<String, List<String>> entry : topology.next.entrySet()) {
+                List<String> targets = next.get(entry.getKey());
+                if (targets == null) {
+                    targets = new ArrayList<String>();
+                    next.put(entry.getKey(), targets);
+                }
+                for (String target : entry.getValue()) {
+                    if (!targets.contains(target)) {
+                        targets.add(target);
+                    }
+                }
+            }
+        }
+        final Map<String, Position> placed = new LinkedHashMap<String, Position>();
+        place(first, 0, 0, next, placed, new HashSet<String>());
+        final Map<Position, String> result = new LinkedHashMap<Position, String>();
+        for (Map.Entry<String, Position> entry : placed.entrySet()) {
+            result.put(entry.getValue(), entry.getKey());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Place a project and, recursively, its downstream projects: one column further for each step, one row further
+     * for each branch, a project reached again goes to the deepest column it is reached at
+     *
+     * @param project full name of the project
+     * @param row     row of the project
+     * @param column  column of the project
+     * @param next    downstream projects of each project
+     * @param placed  position of the projects placed so far
+     * @param path    projects being placed upstream of this one, to stop at cycles
+     * @return the row after the last one used by the project and its downstream projects
+     */
+    private static int place(String project, int row, int column, Map<String, List<String>> next,
+                             Map<String, Position> placed, Set<String> path) {
+        final Position position = placed.get(project);
+        if (position == null) {
+            placed.put(project, new Position(row, column));
+        } else if (position.y < column) {
+            position.y = column;
+        } else {
+            return row + 1;
+        }
+        int x = row;
+        final List<String> targets = next.get(project);
+        boolean branched = false;
+        if (targets != null) {
+            path.add(project);
+            for (String target : targets) {
+                if (!path.contains(target)) {
+                    x = place(target, x, column + 1, next, placed, path);
+                    branched = true;
+                }
+            }
+            path.remove(project);
+        }
+        return branched ? x : x + 1;
+    }
+
+    /**
+     * Project to project edges of a pipeline instance
+     */
+    private static final class Topology {
+        /**
+         * sorted edges, equal for the instances of the same topology
+         */
+        private final String signature;
+
+        /**
+         * downstream projects of each project, in discovery order
+         */
+        private final Map<String, List<String>> next;
+
+        /**
+         * externalizable ids of the builds the topology was read from
+         */
+        private final Set<String> builds;
+
+        /**
+         * build event generation before the topology was read
+         */
+        private final long generation;
+
+        /**
+         * @param signature  sorted edges
+         * @param next       downstream projects of each project
+         * @param builds     externalizable ids of the builds the topology was read from
+         * @param generation build event generation before the topology was read
+         */
+        private Topology(String signature, Map<String, List<String>> next, Set<String> builds, long generation) {
+            this.signature = signature;
+            this.next = next;
+            this.builds = builds;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package au.com.centrumsystems.hudson.plugin.buildpipeline;
+
+import com.google.common.base.Predicate;
+import hudson.model.Item;
+import jenkins.model.Jenkins;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tells whether the current user may read a project, by full name. The caches of this layout are shared by all
+ * viewers and computed as SYSTEM, so what they hand out is filtered with this for each request.
+ * <p>
+ * Answers are remembered, so an instance must only be used by the request (and authentication) it was created for.
+ */
+final class ReadableProjects implements Predicate<String> {
+    /**
+     * Answers so far, by project full name
+     */
+    private final Map<String, Boolean> answers = new HashMap<String, Boolean>();
+
+    @Override
+    public boolean apply(String fullName) {
+        Boolean readable = answers.get(fullName);
+        if (readable == null) {
+            final Jenkins jenkins = Jenkins.getInstance();
+            // getItemByFullName returns null for the items the current user may not read
+            readable = jenkins != null && fullName != null && jenkins.getItemByFullName(fullName, Item.class) != null;
+            answers.put(fullName, readable);
+        }
+        return readable;
+    }
+
+    /**
+     * @param id externalizable id of a build
+     * @return full name of the project of the build
+     */
+    static String projectOf(String id) {
+        return id.substring(0, id.lastIndexOf('#'));
+    }
+}
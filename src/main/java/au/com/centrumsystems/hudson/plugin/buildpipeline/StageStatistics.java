@@ -0,0 +1,438 @@
+package au.com.centrumsystems.hudson.plugin.buildpipeline;
+
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.Cause;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+import static au.com.centrumsystems.hudson.plugin.buildpipeline.ExecutionBuildGraph.Position;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide success rate, duration and queue time statistics of the pipeline stages, updated incrementally as
+ * builds complete. A stage is a cell of a pipeline: the first job, the row and column, and the project placed there,
+ * so a project used at several places of a pipeline gets one set of statistics per place.
+ * <p>
+ * A completed build is attributed to its stages in the background: its upstream builds are walked up to the first
+ * jobs of the pipelines shown by a pipeline view, and its stage is the cell of its project in the header of that
+ * pipeline, as last laid out for the view and saved with the statistics. Recording a build thus never lays out a
+ * pipeline instance, and builds are recorded under the same stages the view reads.
+ * <p>
+ * Each stage keeps two windows of at most half {@link #WINDOW} builds each, the older one being dropped when the
+ * newer one is full, so the statistics cover roughly the last {@link #WINDOW} builds of the stage. Durations are
+ * kept in a logarithmic histogram of fixed relative accuracy, so reading a stage costs the same whatever the length
+ * of its history.
+ */
+public final class StageStatistics implements Saveable {
+    /**
+     * A Logger object is used to log messages
+     */
+    private static final Logger LOGGER = Logger.getLogger(StageStatistics.class.getName());
+
+    /**
+     * Number of builds of a stage the statistics are computed over
+     */
+    static final int WINDOW = Math.max(2, Integer.getInteger(StageStatistics.class.getName() + ".window", 50));
+
+    /**
+     * Minimum time between two saves
+     */
+    private static final long SAVE_INTERVAL_MILLIS = 60 * 1000;
+
+    /**
+     * Maximum number of upstream builds walked to find the pipelines a build belongs to
+     */
+    private static final int MAX_UPSTREAM = 100;
+
+    /**
+     * Attributes the completed builds to their stages, off the executor threads
+     */
+    private static final ExecutorService RECORDER = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "StageStatistics.recorder"));
+
+    /**
+     * Lazily loaded singleton
+     */
+    private static StageStatistics instance;
+
+    /**
+     * Statistics by stage key, see {@link #key}
+     */
+    private final Map<String, Stage> stages = new HashMap<String, Stage>();
+
+    /**
+     * Stage key of each project of the header, by first job of the pipelines shown by a pipeline view, the only
+     * ones recorded; guarded by {@link #stages}
+     */
+    private final Map<String, Map<String, String>> pipelines = new HashMap<String, Map<String, String>>();
+
+    /**
+     * When the statistics were last saved
+     */
+    private transient long lastSaved;
+
+    /**
+     * @return the statistics, loaded from disk on first use
+     */
+    static StageStatistics get() {
+        synchronized (StageStatistics.class) {
+            if (instance == null) {
+                instance = new StageStatistics();
+                final XmlFile file = getConfigFile();
+                if (file != null && file.exists()) {
+                    try {
+                        file.unmarshal(instance);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+                    }
+                }
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * @return the file the statistics are persisted in, null if Jenkins is not running
+     */
+    private static XmlFile getConfigFile() {
+        final Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+        return new XmlFile(Jenkins.XSTREAM, new File(jenkins.getRootDir(), StageStatistics.class.getName() + ".xml"));
+    }
+
+    /**
+     * Record the builds of a pipeline under the stages of its header, saving them if they changed
+     *
+     * @param firstJob   full name of the first job of a pipeline shown by a pipeline view
+     * @param placements full name of the project placed in each cell of its header
+     */
+    void track(String firstJob, Map<Position, String> placements) {
+        final Map<String, String> keys = new HashMap<String, String>();
+        for (Map.Entry<Position, String> entry : placements.entrySet()) {
+            final Position p = entry.getKey();
+            keys.put(entry.getValue(), key(firstJob, p.x, p.y, entry.getValue()));
+        }
+        synchronized (stages) {
+            if (keys.equals(pipelines.get(firstJob))) {
+                return;
+            }
+            pipelines.put(firstJob, keys);
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save stage statistics", e);
+        }
+    }
+
+    /**
+     * @param firstJob full name of the first job of the pipeline
+     * @param row      row of the stage
+     * @param column   column of the stage
+     * @param project  full name of the project placed there
+     * @return the key of the stage
+     */
+    static String key(String firstJob, int row, int column, String project) {
+        return firstJob + "|" + row + ":" + column + "|" + project;
+    }
+
+    /**
+     * Record a completed build in the stages it occupies, in the background
+     *
+     * @param build the completed build
+     */
+    void record(final AbstractBuild<?, ?> build) {
+        final long queued = PipelineQueueListener.takeQueueMillis(build);
+        RECORDER.submit(new Runnable() {
+            @Override
+            public void run() {
+                final SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+                try {
+                    record(build, queued);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to record " + build + " in the stage statistics", e);
+                } finally {
+                    SecurityContextHolder.setContext(old);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param build  a completed build
+     * @param queued time it waited in the queue in milliseconds, -1 if unknown
+     */
+    private void record(AbstractBuild<?, ?> build, long queued) {
+        final String id = build.getExternalizableId();
+        final String project = build.getProject().getFullName();
+        final boolean success = build.getResult() == Result.SUCCESS;
+        final Set<String> seen = new HashSet<String>();
+        final LinkedList<Run<?, ?>> ancestors = new LinkedList<Run<?, ?>>();
+        ancestors.add(build);
+        seen.add(id);
+        final Set<String> recorded = new HashSet<String>();
+        while (!ancestors.isEmpty() && seen.size() <= MAX_UPSTREAM) {
+            final Run<?, ?> ancestor = ancestors.removeFirst();
+            final String firstJob = ancestor.getParent().getFullName();
+            synchronized (stages) {
+                final Map<String, String> keys = pipelines.get(firstJob);
+                final String key = keys == null ? null : keys.get(project);
+                if (key != null && recorded.add(key)) {
+                    Stage stage = stages.get(key);
+                    if (stage == null) {
+                        stage = new Stage();
+                        stages.put(key, stage);
+                    }
+                    stage.record(success, build.getDuration(), queued);
+                }
+            }
+            for (Cause cause : ancestor.getCauses()) {
+                if (cause instanceof Cause.UpstreamCause) {
+                    final Cause.UpstreamCause upstream = (Cause.UpstreamCause) cause;
+                    final String upstreamId = upstream.getUpstreamProject() + "#" + upstream.getUpstreamBuild();
+                    if (seen.add(upstreamId)) {
+                        final Run<?, ?> r = Run.fromExternalizableId(upstreamId);
+                        if (r != null) {
+                            ancestors.add(r);
+                        }
+                    }
+                }
+            }
+        }
+        if (!recorded.isEmpty()) {
+            saveThrottled();
+        }
+    }
+
+    /**
+     * Save, unless the statistics were saved recently
+     */
+    private void saveThrottled() {
+        final long now = System.currentTimeMillis();
+        synchronized (stages) {
+            if (now - lastSaved < SAVE_INTERVAL_MILLIS) {
+                return;
+            }
+            lastSaved = now;
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save stage statistics", e);
+        }
+    }
+
+    /**
+     * @param key key of a stage, see {@link #key}
+     * @return its statistics, with zero samples if none were recorded
+     */
+    JSONObject toJSON(String key) {
+        synchronized (stages) {
+            final Stage stage = stages.get(key);
+            return stage == null ? new Stage().toJSON() : stage.toJSON();
+        }
+    }
+
+    @Override
+    public void save() throws IOException {
+        final XmlFile file = getConfigFile();
+        if (file != null) {
+            synchronized (stages) {
+                file.write(this);
+            }
+        }
+    }
+
+    /**
+     * Statistics of one stage: the current window and the previous one
+     */
+    static final class Stage {
+        /**
+         * window being filled
+         */
+        private Window current = new Window();
+
+        /**
+         * last full window
+         */
+        private Window previous = new Window();
+
+        /**
+         * @param success  whether the build succeeded
+         * @param duration build duration in milliseconds
+         * @param queued   time waited in the queue in milliseconds, -1 if unknown
+         */
+        void record(boolean success, long duration, long queued) {
+            if (current.count >= WINDOW / 2) {
+                previous = current;
+                current = new Window();
+            }
+            current.record(success, duration, queued);
+        }
+
+        /**
+         * @return success rate, mean and p95 duration, and mean queue time (when known) over both windows
+         */
+        JSONObject toJSON() {
+            final int count = current.count + previous.count;
+            final JSONObject o = new JSONObject();
+            o.put("samples", count);
+            if (count > 0) {
+                o.put("successRate", (double) (current.successes + previous.successes) / count);
+                o.put("meanDurationMillis", (current.totalDuration + previous.totalDuration) / count);
+                o.put("p95DurationMillis", Window.quantile(current, previous, 0.95));
+                final int queueSamples = current.queueSamples + previous.queueSamples;
+                if (queueSamples > 0) {
+                    o.put("meanQueueMillis", (current.totalQueued + previous.totalQueued) / queueSamples);
+                }
+            }
+            return o;
+        }
+    }
+
+    /**
+     * Counters and duration histogram of a bounded number of builds
+     */
+    static final class Window {
+        /**
+         * growth factor between two histogram buckets, i.e. the relative accuracy of the quantiles
+         */
+        private static final double GAMMA = 1.1;
+
+        /**
+         * number of builds
+         */
+        private int count;
+
+        /**
+         * number of successful builds
+         */
+        private int successes;
+
+        /**
+         * sum of the durations
+         */
+        private long totalDuration;
+
+        /**
+         * number of builds whose queue time is known
+         */
+        private int queueSamples;
+
+        /**
+         * sum of the known queue times
+         */
+        private long totalQueued;
+
+        /**
+         * index of the bucket counted by buckets[0]
+         */
+        private int offset;
+
+        /**
+         * number of durations per bucket, bucket i holding durations up to GAMMA^(offset + i) milliseconds
+         */
+        private int[] buckets = new int[0];
+
+        /**
+         * @param success  whether the build succeeded
+         * @param duration build duration in milliseconds
+         * @param queued   time waited in the queue in milliseconds, -1 if unknown
+         */
+        void record(boolean success, long duration, long queued) {
+            count++;
+            if (success) {
+                successes++;
+            }
+            totalDuration += duration;
+            if (queued >= 0) {
+                queueSamples++;
+                totalQueued += queued;
+            }
+            final int index = (int) Math.ceil(Math.log(Math.max(1, duration)) / Math.log(GAMMA));
+            if (buckets.length == 0) {
+                offset = index;
+                buckets = new int[1];
+            } else if (index < offset) {
+                final int[] grown = new int[buckets.length + offset - index];
+                System.arraycopy(buckets, 0, grown, offset - index, buckets.length);
+                buckets = grown;
+                offset = index;
+            } else if (index >= offset + buckets.length) {
+                final int[] grown = new int[index - offset + 1];
+                System.arraycopy(buckets, 0, grown, 0, buckets.length);
+                buckets = grown;
+            }
+            buckets[index - offset]++;
+        }
+
+        /**
+         * @param a        a window
+         * @param b        another window
+         * @param quantile between 0 and 1
+         * @return the approximate duration quantile of both windows together
+         */
+        static long quantile(Window a, Window b, double quantile) {
+            final int count = a.count + b.count;
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(quantile * count);
+            final int from = Math.min(a.lowest(), b.lowest());
+            final int to = Math.max(a.highest(), b.highest());
+            long seen = 0;
+            for (int index = from; index <= to; index++) {
+                seen += a.at(index) + b.at(index);
+                if (seen >= rank) {
+                    return Math.round(Math.pow(GAMMA, index));
+                }
+            }
+            return Math.round(Math.pow(GAMMA, to));
+        }
+
+        /**
+         * @return lowest bucket index, or {@link Integer#MAX_VALUE} if empty
+         */
+        private int lowest() {
+            return buckets.length == 0 ? Integer.MAX_VALUE : offset;
+        }
+
+        /**
+         * @return highest bucket index, or {@link Integer#MIN_VALUE} if empty
+         */
+        private int highest() {
+            return buckets.length == 0 ? Integer.MIN_VALUE : offset + buckets.length - 1;
+        }
+
+        /**
+         * @param index bucket index
+         * @return number of durations in the bucket
+         */
+        private int at(int index) {
+            final int i = index - offset;
+            return i >= 0 && i < buckets.length ? buckets[i] : 0;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package au.com.centrumsystems.hudson.plugin.buildpipeline;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.tasks.BuildTrigger;
+import hudson.util.OneShotEvent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The {@link DownstreamCache} and {@link LayoutCache} entries of an upstream build are evicted when one of its
+ * downstream builds starts, completes or is deleted.
+ */
+public class CacheEvictionTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void downstreamBuildEventsEvictTheUpstreamEntries() throws Exception {
+        final FreeStyleProject up = j.createFreeStyleProject("eviction-up");
+        final FreeStyleProject down = j.createFreeStyleProject("eviction-down");
+        up.getPublishersList().add(new BuildTrigger(down.getFullName(), Result.SUCCESS));
+        j.jenkins.rebuildDependencyGraph();
+        final FreeStyleBuild root = j.assertBuildStatusSuccess(up.scheduleBuild2(0));
+        j.waitUntilNoActivity();
+        final String first = down.getBuildByNumber(1).getExternalizableId();
+
+        final DownstreamCache.Downstream completed = DownstreamCache.get(root);
+        assertTrue(completed.getIds().contains(first));
+        assertSame(completed, DownstreamCache.get(root));
+        assertTrue(cellIds(LayoutCache.get(root)).contains(first));
+
+        final OneShotEvent release = new OneShotEvent();
+        down.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                    throws InterruptedException {
+                release.block();
+                return true;
+            }
+        });
+        final QueueTaskFuture<FreeStyleBuild> future = down.scheduleBuild2(0, new Cause.UpstreamCause((Run) root));
+        final String second = future.waitForStart().getExternalizableId();
+
+        final DownstreamCache.Downstream started = DownstreamCache.get(root);
+        assertNotSame(completed, started);
+        assertTrue(started.getIds().contains(second));
+        final LayoutCache.Layout running = LayoutCache.get(root);
+        assertTrue(running.isBuilding());
+        assertTrue(cellIds(running).contains(second));
+
+        release.signal();
+        final FreeStyleBuild build = j.assertBuildStatusSuccess(future);
+        assertNotSame(started, DownstreamCache.get(root));
+        assertFalse(LayoutCache.get(root).isBuilding());
+
+        build.delete();
+        assertFalse(DownstreamCache.get(root).getIds().contains(second));
+        assertFalse(cellIds(LayoutCache.get(root)).contains(second));
+        assertTrue(cellIds(LayoutCache.get(root)).contains(first));
+    }
+
+    private static List<String> cellIds(LayoutCache.Layout layout) {
+        final List<String> ids = new ArrayList<String>();
+        for (LayoutCache.Cell cell : layout.getCells()) {
+            ids.add(cell.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,111 @@
+package au.com.centrumsystems.hudson.plugin.buildpipeline;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * When the Server-Sent Events of {@link PipelineCellModel} resume from the client's last event id, and when they
+ * start over with a full reset.
+ */
+public class PipelineCellModelTest {
+    private static final Predicate<String> ALL = Predicates.alwaysTrue();
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FreeStyleProject project;
+
+    private long generation;
+
+    @Before
+    public void createPipeline() throws Exception {
+        project = j.createFreeStyleProject("cells-root");
+        j.buildAndAssertSuccess(project);
+    }
+
+    @Test
+    public void resumesWithinTheSameEpoch() throws Exception {
+        final PipelineCellModel model = new PipelineCellModel();
+        refresh(model);
+        final StringWriter first = new StringWriter();
+        final String seen = model.writeSince(new PrintWriter(first), null, ALL);
+        assertTrue(first.toString(), first.toString().contains("event: reset"));
+
+        final StringWriter unchanged = new StringWriter();
+        assertEquals(seen, model.writeSince(new PrintWriter(unchanged), seen, ALL));
+        assertEquals("", unchanged.toString());
+
+        final FreeStyleBuild second = j.buildAndAssertSuccess(project);
+        refresh(model);
+        final StringWriter resumed = new StringWriter();
+        final String next = model.writeSince(new PrintWriter(resumed), seen, ALL);
+        assertFalse(resumed.toString(), resumed.toString().contains("event: reset"));
+        assertTrue(resumed.toString(), resumed.toString().contains("event: cell"));
+        assertTrue(resumed.toString(), resumed.toString().contains(second.getExternalizableId()));
+        assertTrue(resumed.toString(), resumed.toString().contains("id: " + next + "\n"));
+    }
+
+    @Test
+    public void resetsWhenTheHistoryExpired() throws Exception {
+        final PipelineCellModel model = new PipelineCellModel(1);
+        refresh(model);
+        final String seen = model.writeSince(new PrintWriter(new StringWriter()), null, ALL);
+        j.buildAndAssertSuccess(project);
+        refresh(model);
+        j.buildAndAssertSuccess(project);
+        refresh(model);
+
+        final StringWriter out = new StringWriter();
+        model.writeSince(new PrintWriter(out), seen, ALL);
+        assertTrue(out.toString(), out.toString().contains("event: reset"));
+        assertFalse(out.toString(), out.toString().contains("event: cell"));
+    }
+
+    @Test
+    public void resetsOnAnotherEpoch() throws Exception {
+        final PipelineCellModel model = new PipelineCellModel();
+        refresh(model);
+        for (String lastSeen : new String[]{"1-1", "garbage", ""}) {
+            final StringWriter out = new StringWriter();
+            model.writeSince(new PrintWriter(out), lastSeen, ALL);
+            assertTrue(lastSeen, out.toString().contains("event: reset"));
+        }
+    }
+
+    @Test
+    public void filtersThePerViewerProjects() throws Exception {
+        final PipelineCellModel model = new PipelineCellModel();
+        refresh(model);
+        final Predicate<String> none = Predicates.alwaysFalse();
+        final StringWriter reset = new StringWriter();
+        final String seen = model.writeSince(new PrintWriter(reset), null, none);
+        assertTrue(reset.toString(), reset.toString().contains("data: []"));
+
+        final FreeStyleBuild second = j.buildAndAssertSuccess(project);
+        refresh(model);
+        final StringWriter hidden = new StringWriter();
+        model.writeSince(new PrintWriter(hidden), seen, none);
+        assertFalse(hidden.toString(), hidden.toString().contains(second.getExternalizableId()));
+
+        final StringWriter shown = new StringWriter();
+        model.writeSince(new PrintWriter(shown), seen, Predicates.equalTo(project.getFullName()));
+        assertTrue(shown.toString(), shown.toString().contains(second.getExternalizableId()));
+    }
+
+    private void refresh(PipelineCellModel model) {
+        model.refresh(project, 5, ++generation);
+    }
+}
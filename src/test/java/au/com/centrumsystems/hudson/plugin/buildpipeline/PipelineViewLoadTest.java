@@ -0,0 +1,374 @@
+package au.com.centrumsystems.hudson.plugin.buildpipeline;
+
+import com.cloudbees.plugins.flow.BuildFlow;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.plugins.parameterizedtrigger.AbstractBuildParameters;
+import hudson.plugins.parameterizedtrigger.BlockableBuildTriggerConfig;
+import hudson.plugins.parameterizedtrigger.BlockingBehaviour;
+import hudson.plugins.parameterizedtrigger.TriggerBuilder;
+import hudson.util.PluginServletFilter;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * End-to-end load harness: generates build-flow and parameterized-trigger pipelines with many historical runs,
+ * shows each in a {@link BuildPipelineView} using {@link DownStreamRunDeclarerGridBuilder}, drives concurrent HTTP
+ * clients against the views and writes the render latency, allocation, graphviz forks and temporary files to a
+ * JSON file, so releases can be compared. Allocation is measured on the threads doing the work: on the server, around
+ * each request on its thread plus on the row workers, and on each client thread.
+ * <p>
+ * Skipped unless run with {@code -Dpipeline.loadtest=true}. Other settings, all system properties:
+ * {@code pipeline.loadtest.runs} (pipeline instances per topology), {@code .width} and {@code .depth} (topology
+ * size), {@code .displayed} (rows per view), {@code .clients} (concurrent clients), {@code .requests} (requests per
+ * client) and {@code .output} (result file, target/pipeline-load-test.json by default).
+ */
+public class PipelineViewLoadTest {
+    static {
+        // the background warm-up would lay out the views in the middle of the measurements
+        System.setProperty(PipelineWarmUp.class.getName() + ".disabled", "true");
+    }
+
+    private static final String PREFIX = "pipeline.loadtest.";
+
+    /**
+     * Name prefix of the threads laying out the rows ahead of the request threads
+     */
+    private static final String ROW_WORKERS = "DownStreamRunDeclarerGridBuilder.rows";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule() {
+        {
+            timeout = 0;
+        }
+    };
+
+    @BeforeClass
+    public static void enabled() {
+        Assume.assumeTrue(Boolean.getBoolean("pipeline.loadtest"));
+        Assume.assumeTrue("graphviz dot is required", isDotInstalled());
+    }
+
+    @Test
+    public void renderUnderConcurrentViewers() throws Exception {
+        final int runs = Integer.getInteger(PREFIX + "runs", 20);
+        final int width = Integer.getInteger(PREFIX + "width", 3);
+        final int depth = Integer.getInteger(PREFIX + "depth", 3);
+        final int displayed = Integer.getInteger(PREFIX + "displayed", 10);
+        final int clients = Integer.getInteger(PREFIX + "clients", 8);
+        final int requests = Integer.getInteger(PREFIX + "requests", 10);
+
+        final List<BuildPipelineView> views = new ArrayList<BuildPipelineView>();
+        views.add(view("flow", createFlowTopology(width, depth), displayed));
+        views.add(view("trigger", createTriggerTopology(width, depth), displayed));
+        for (BuildPipelineView view : views) {
+            final DownStreamRunDeclarerGridBuilder builder = (DownStreamRunDeclarerGridBuilder) view.getGridBuilder();
+            for (int i = 0; i < runs; i++) {
+                j.assertBuildStatusSuccess(builder.getFirstJob(view).scheduleBuild2(0));
+            }
+        }
+        j.waitUntilNoActivity();
+
+        final JSONObject report = new JSONObject();
+        final JSONObject settings = new JSONObject();
+        settings.put("jenkins", Jenkins.VERSION);
+        settings.put("runs", runs);
+        settings.put("width", width);
+        settings.put("depth", depth);
+        settings.put("displayed", displayed);
+        settings.put("clients", clients);
+        settings.put("requests", requests);
+        report.put("settings", settings);
+        final JSONArray results = new JSONArray();
+        for (BuildPipelineView view : views) {
+            results.add(measure(view, clients, requests));
+        }
+        report.put("views", results);
+        write(report);
+    }
+
+    /**
+     * Flow job running {@code depth} stages of {@code width} parallel jobs each.
+     */
+    private String createFlowTopology(int width, int depth) throws IOException {
+        final StringBuilder dsl = new StringBuilder();
+        for (int level = 0; level < depth; level++) {
+            dsl.append("parallel(");
+            for (int i = 0; i < width; i++) {
+                final String name = "flow-" + level + "-" + i;
+                j.createFreeStyleProject(name);
+                dsl.append(i > 0 ? ", " : "").append("{ build(\"").append(name).append("\") }");
+            }
+            dsl.append(")\n");
+        }
+        final BuildFlow flow = j.jenkins.createProject(BuildFlow.class, "flow-root");
+        flow.setDsl(dsl.toString());
+        return flow.getFullName();
+    }
+
+    /**
+     * Free style job triggering {@code width} chains of {@code depth} jobs through blocking parameterized triggers.
+     */
+    private String createTriggerTopology(int width, int depth) throws IOException {
+        final FreeStyleProject root = j.createFreeStyleProject("trigger-root");
+        final StringBuilder heads = new StringBuilder();
+        for (int i = 0; i < width; i++) {
+            FreeStyleProject next = null;
+            for (int level = depth - 1; level >= 0; level--) {
+                final FreeStyleProject p = j.createFreeStyleProject("trigger-" + level + "-" + i);
+                if (next != null) {
+                    p.getBuildersList().add(trigger(next.getFullName()));
+                }
+                next = p;
+            }
+            heads.append(i > 0 ? "," : "").append(next.getFullName());
+        }
+        root.getBuildersList().add(trigger(heads.toString()));
+        return root.getFullName();
+    }
+
+    private static TriggerBuilder trigger(String projects) {
+        return new TriggerBuilder(new BlockableBuildTriggerConfig(projects,
+                new BlockingBehaviour(Result.FAILURE, Result.UNSTABLE, Result.FAILURE),
+                Collections.<AbstractBuildParameters>emptyList()));
+    }
+
+    private BuildPipelineView view(String name, String firstJob, int displayed) throws IOException {
+        final BuildPipelineView view = new BuildPipelineView(name, name, new DownStreamRunDeclarerGridBuilder(firstJob),
+                String.valueOf(displayed), false, null);
+        j.jenkins.addView(view);
+        return view;
+    }
+
+    /**
+     * Render the view from {@code clients} threads at once, {@code requests} times each.
+     */
+    private JSONObject measure(BuildPipelineView view, int clients, final int requests) throws Exception {
+        final URL url = new URL(j.getURL(), view.getUrl());
+        final long forks = LayoutMetrics.toJSON().getLong("forks");
+        final long tempFiles = LayoutMetrics.toJSON().getLong("tempFiles");
+        final AllocationFilter served = new AllocationFilter();
+        final Map<Long, Long> workers = rowWorkerAllocations();
+        final AtomicLong clientAllocated = new AtomicLong();
+        final long firstMillis;
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        final long elapsedMillis;
+        PluginServletFilter.addFilter(served);
+        try {
+            firstMillis = render(url);
+
+            final CountDownLatch go = new CountDownLatch(1);
+            final ExecutorService pool = Executors.newFixedThreadPool(clients);
+            final List<Future<Void>> done = new ArrayList<Future<Void>>();
+            for (int c = 0; c < clients; c++) {
+                done.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        go.await();
+                        final long before = currentThreadAllocatedBytes();
+                        for (int r = 0; r < requests; r++) {
+                            latencies.add(render(url));
+                        }
+                        add(clientAllocated, before, currentThreadAllocatedBytes());
+                        return null;
+                    }
+                }));
+            }
+            final long startedAt = System.nanoTime();
+            go.countDown();
+            for (Future<Void> f : done) {
+                f.get();
+            }
+            elapsedMillis = (System.nanoTime() - startedAt) / 1000000;
+            pool.shutdown();
+        } finally {
+            PluginServletFilter.removeFilter(served);
+        }
+        long workersAllocated = 0;
+        for (Map.Entry<Long, Long> entry : rowWorkerAllocations().entrySet()) {
+            final Long before = workers.get(entry.getKey());
+            workersAllocated += entry.getValue() - (before == null ? 0 : before);
+        }
+
+        final List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        final JSONObject result = new JSONObject();
+        result.put("view", view.getViewName());
+        result.put("firstJob", ((DownStreamRunDeclarerGridBuilder) view.getGridBuilder()).getFirstJob());
+        result.put("firstRenderMillis", firstMillis);
+        result.put("requests", sorted.size());
+        result.put("p50Millis", percentile(sorted, 0.50));
+        result.put("p99Millis", percentile(sorted, 0.99));
+        result.put("maxMillis", sorted.get(sorted.size() - 1));
+        result.put("requestsPerSecond", elapsedMillis == 0 ? 0 : sorted.size() * 1000.0 / elapsedMillis);
+        final boolean measured = currentThreadAllocatedBytes() >= 0;
+        result.put("serverAllocatedBytes", measured ? served.allocated.get() + workersAllocated : -1);
+        result.put("clientAllocatedBytes", measured ? clientAllocated.get() : -1);
+        result.put("forks", LayoutMetrics.toJSON().getLong("forks") - forks);
+        result.put("tempFiles", LayoutMetrics.toJSON().getLong("tempFiles") - tempFiles);
+        return result;
+    }
+
+    /**
+     * @return time taken to fetch the whole page, in milliseconds
+     */
+    private static long render(URL url) throws IOException {
+        final long startedAt = System.nanoTime();
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            assertEquals(url.toString(), 200, connection.getResponseCode());
+            final InputStream in = connection.getInputStream();
+            try {
+                final byte[] buffer = new byte[8192];
+                while (in.read(buffer) >= 0) {
+                    // drain
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+        return (System.nanoTime() - startedAt) / 1000000;
+    }
+
+    /**
+     * Exact (nearest rank) percentile of sorted samples.
+     */
+    private static long percentile(List<Long> sorted, double p) {
+        final int rank = (int) Math.ceil(p * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+
+    /**
+     * @return the thread allocation counters, null if unsupported
+     */
+    private static com.sun.management.ThreadMXBean allocationCounters() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        final com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+        return sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled() ? sun : null;
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread, -1 if unsupported
+     */
+    private static long currentThreadAllocatedBytes() {
+        final com.sun.management.ThreadMXBean sun = allocationCounters();
+        return sun == null ? -1 : sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * @return bytes allocated so far by each row worker, by thread id; the workers live as long as Jenkins
+     */
+    private static Map<Long, Long> rowWorkerAllocations() {
+        final Map<Long, Long> result = new HashMap<Long, Long>();
+        final com.sun.management.ThreadMXBean sun = allocationCounters();
+        if (sun == null) {
+            return result;
+        }
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(ROW_WORKERS)) {
+                final long bytes = sun.getThreadAllocatedBytes(thread.getId());
+                if (bytes >= 0) {
+                    result.put(thread.getId(), bytes);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void add(AtomicLong total, long before, long after) {
+        if (before >= 0 && after >= 0) {
+            total.addAndGet(after - before);
+        }
+    }
+
+    /**
+     * Adds up what each request allocates on the thread serving it
+     */
+    private static final class AllocationFilter implements Filter {
+        private final AtomicLong allocated = new AtomicLong();
+
+        @Override
+        public void init(FilterConfig config) {
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+                throws IOException, ServletException {
+            final long before = currentThreadAllocatedBytes();
+            try {
+                chain.doFilter(request, response);
+            } finally {
+                add(allocated, before, currentThreadAllocatedBytes());
+            }
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    private static boolean isDotInstalled() {
+        try {
+            return new ProcessBuilder("dot", "-V").redirectErrorStream(true).start().waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    private static void write(JSONObject report) throws IOException {
+        final File file = new File(System.getProperty(PREFIX + "output", "target/pipeline-load-test.json"));
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        final Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            w.write(report.toString(2));
+        } finally {
+            w.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package au.com.centrumsystems.hudson.plugin.buildpipeline;
+
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The log-histogram quantiles and the two-window rotation of {@link StageStatistics}.
+ */
+public class StageStatisticsTest {
+    private static final int HALF = StageStatistics.WINDOW / 2;
+
+    @Test
+    public void emptyStageHasNoStatistics() {
+        final JSONObject json = new StageStatistics.Stage().toJSON();
+        assertEquals(0, json.getInt("samples"));
+        assertFalse(json.containsKey("successRate"));
+        assertFalse(json.containsKey("p95DurationMillis"));
+    }
+
+    @Test
+    public void p95IsWithinTheHistogramAccuracy() {
+        final StageStatistics.Stage stage = new StageStatistics.Stage();
+        for (int i = 1; i <= 20; i++) {
+            stage.record(true, i * 1000L, -1);
+        }
+        final long p95 = stage.toJSON().getLong("p95DurationMillis");
+        assertTrue(String.valueOf(p95), p95 >= 19000 && p95 < 19000 * 1.1);
+    }
+
+    @Test
+    public void quantileSpansBothWindows() {
+        final StageStatistics.Window low = new StageStatistics.Window();
+        final StageStatistics.Window high = new StageStatistics.Window();
+        for (int i = 0; i < 10; i++) {
+            low.record(true, 10, -1);
+            high.record(true, 10000, -1);
+        }
+        final long median = StageStatistics.Window.quantile(low, high, 0.5);
+        assertTrue(String.valueOf(median), median >= 10 && median <= 11);
+        final long p95 = StageStatistics.Window.quantile(low, high, 0.95);
+        assertTrue(String.valueOf(p95), p95 >= 10000 && p95 < 11000);
+        assertEquals(0, StageStatistics.Window.quantile(new StageStatistics.Window(), new StageStatistics.Window(), 0.95));
+    }
+
+    @Test
+    public void olderWindowIsDroppedWhenTheNewerOneIsFull() {
+        final StageStatistics.Stage stage = new StageStatistics.Stage();
+        for (int i = 0; i < 2 * HALF; i++) {
+            stage.record(false, 100000, -1);
+        }
+        for (int i = 0; i < HALF; i++) {
+            stage.record(true, 1000, -1);
+        }
+        JSONObject json = stage.toJSON();
+        assertEquals(2 * HALF, json.getInt("samples"));
+        assertEquals(0.5, json.getDouble("successRate"), 0.0001);
+
+        for (int i = 0; i < HALF; i++) {
+            stage.record(true, 1000, -1);
+        }
+        json = stage.toJSON();
+        assertEquals(2 * HALF, json.getInt("samples"));
+        assertEquals(1.0, json.getDouble("successRate"), 0.0001);
+        assertEquals(1000, json.getLong("meanDurationMillis"));
+        final long p95 = json.getLong("p95DurationMillis");
+        assertTrue(String.valueOf(p95), p95 >= 1000 && p95 < 1100);
+    }
+
+    @Test
+    public void meanQueueTimeOnlyCountsKnownQueueTimes() {
+        final StageStatistics.Stage stage = new StageStatistics.Stage();
+        stage.record(true, 1000, -1);
+        assertFalse(stage.toJSON().containsKey("meanQueueMillis"));
+        stage.record(true, 1000, 200);
+        stage.record(true, 1000, 400);
+        assertEquals(300, stage.toJSON().getLong("meanQueueMillis"));
+    }
+}